@@ -81,10 +81,29 @@ public interface AppRTCClient {
     public final String wssPostUrl;
     public final SessionDescription offerSdp;
     public final List<IceCandidate> iceCandidates;
+    // True if the sender of |offerSdp| accepts compressed session descriptions.
+    public final boolean offerAcceptsCompression;
+    // True if TURN servers are still being fetched and will be reported by
+    // SignalingEvents.onIceServersAdded.
+    public final boolean turnServersPending;
 
     public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator,
         String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp,
         List<IceCandidate> iceCandidates) {
+      this(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates, false);
+    }
+
+    public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator,
+        String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp,
+        List<IceCandidate> iceCandidates, boolean offerAcceptsCompression) {
+      this(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates,
+          offerAcceptsCompression, false);
+    }
+
+    public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator,
+        String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp,
+        List<IceCandidate> iceCandidates, boolean offerAcceptsCompression,
+        boolean turnServersPending) {
       this.iceServers = iceServers;
       this.initiator = initiator;
       this.clientId = clientId;
@@ -92,6 +111,8 @@ public interface AppRTCClient {
       this.wssPostUrl = wssPostUrl;
       this.offerSdp = offerSdp;
       this.iceCandidates = iceCandidates;
+      this.offerAcceptsCompression = offerAcceptsCompression;
+      this.turnServersPending = turnServersPending;
     }
   }
 
@@ -107,6 +128,12 @@ public interface AppRTCClient {
      */
     void onConnectedToRoom(final SignalingParameters params);
 
+    /**
+     * Callback fired once additional ICE servers (TURN servers fetched after
+     * the room join) are available.
+     */
+    void onIceServersAdded(final List<PeerConnection.IceServer> iceServers);
+
     /**
      * Callback fired once remote SDP is received.
      */
@@ -20,6 +20,7 @@ import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.support.v4.app.FragmentTransaction;
 import android.util.DisplayMetrics;
@@ -32,6 +33,12 @@ import android.widget.Toast;
 
 import com.serenegiant.apprtcmobile.R;
 import com.serenegiant.webrtc.Camera1SurfaceCaptureAndroid;
+import com.serenegiant.webrtc.CameraSurfaceCapture;
+import com.serenegiant.webrtc.FanOutVideoSink;
+import com.serenegiant.webrtc.ScalingVideoSink;
+import com.serenegiant.webrtc.SyntheticSurfaceCapture;
+import com.serenegiant.webrtc.Y4mFileVideoRecorder;
+import com.serenegiant.webrtc.Y4mFileVideoCapture;
 
 import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
 import org.appspot.apprtc.AppRTCAudioManager.AudioManagerEvents;
@@ -43,9 +50,9 @@ import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
-import org.webrtc.FileVideoCapturer;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
+import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
@@ -53,14 +60,18 @@ import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
-import org.webrtc.VideoFileRenderer;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -110,12 +121,17 @@ public class CallActivity extends BaseActivity
 	public static final String EXTRA_CMDLINE = "org.appspot.apprtc.CMDLINE";
 	public static final String EXTRA_RUNTIME = "org.appspot.apprtc.RUNTIME";
 	public static final String EXTRA_VIDEO_FILE_AS_CAMERA = "org.appspot.apprtc.VIDEO_FILE_AS_CAMERA";
+	// Name of a SyntheticSurfaceCapture.Pattern to send generated video instead of the camera.
+	public static final String EXTRA_SYNTHETIC_VIDEO = "org.appspot.apprtc.SYNTHETIC_VIDEO";
+	public static final String EXTRA_PIP_PREVIEW_FPS = "org.appspot.apprtc.PIP_PREVIEW_FPS";
 	public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE =
 		"org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE";
 	public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH =
 		"org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_WIDTH";
 	public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT =
 		"org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT";
+	public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FPS =
+		"org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE_FPS";
 	public static final String EXTRA_USE_VALUES_FROM_INTENT =
 		"org.appspot.apprtc.USE_VALUES_FROM_INTENT";
 	public static final String EXTRA_DATA_CHANNEL_ENABLED = "org.appspot.apprtc.DATA_CHANNEL_ENABLED";
@@ -128,6 +144,8 @@ public class CallActivity extends BaseActivity
 	public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
 	public static final String EXTRA_USE_LEGACY_AUDIO_DEVICE =
 		"org.appspot.apprtc.USE_LEGACY_AUDIO_DEVICE";
+	public static final String EXTRA_LOADTEST_PAIRS = "org.appspot.apprtc.LOADTEST_PAIRS";
+	public static final String EXTRA_LOADTEST_CANDIDATES = "org.appspot.apprtc.LOADTEST_CANDIDATES";
 	
 	private static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
 	
@@ -138,26 +156,60 @@ public class CallActivity extends BaseActivity
 	// Peer connection statistics callback period in ms.
 	private static final int STAT_CALLBACK_PERIOD = 1000;
 	
+	// Forwards frames to a target that can be swapped from the UI thread without a lock, so
+	// swapping feeds or toggling full screen never blocks the decode or capture thread.
+	// A frame that was already being delivered may still reach the previous target after
+	// setTarget returns, which SurfaceViewRenderer tolerates even once released.
 	private static class ProxyVideoSink implements VideoSink {
-		private VideoSink target;
+		@Nullable
+		private volatile VideoSink target;
+		private final AtomicLong droppedFrames = new AtomicLong();
+		// Call setup phase that ends and event that is traced on the first delivered frame.
+		@Nullable
+		private final String firstFramePhase;
+		private final String firstFrameEvent;
+		// Only accessed on the thread that delivers frames.
+		private boolean firstFrameTraced;
+		
+		ProxyVideoSink(@Nullable String firstFramePhase, String firstFrameEvent) {
+			this.firstFramePhase = firstFramePhase;
+			this.firstFrameEvent = firstFrameEvent;
+		}
 		
 		@Override
-		synchronized public void onFrame(VideoFrame frame) {
-			if (target == null) {
-				Logging.d(TAG, "Dropping frame in proxy because target is null.");
+		public void onFrame(VideoFrame frame) {
+			final VideoSink sink = target;
+			if (sink == null) {
+				if (droppedFrames.getAndIncrement() == 0) {
+					Logging.d(TAG, "Dropping frames in proxy because target is null.");
+				}
 				return;
 			}
 			
-			target.onFrame(frame);
+			sink.onFrame(frame);
+			if (!firstFrameTraced) {
+				firstFrameTraced = true;
+				if (firstFramePhase != null) {
+					CallSetupTracer.endPhase(firstFramePhase);
+				}
+				CallSetupTracer.instant(firstFrameEvent);
+			}
 		}
 		
-		synchronized public void setTarget(VideoSink target) {
+		public void setTarget(@Nullable VideoSink target) {
 			this.target = target;
 		}
+		
+		// Number of frames dropped because no target was set.
+		public long getDroppedFrames() {
+			return droppedFrames.get();
+		}
 	}
 	
-	private final ProxyVideoSink remoteProxyRenderer = new ProxyVideoSink();
-	private final ProxyVideoSink localProxyVideoSink = new ProxyVideoSink();
+	private final ProxyVideoSink remoteProxyRenderer =
+		new ProxyVideoSink(null, CallSetupTracer.FIRST_REMOTE_FRAME);
+	private final ProxyVideoSink localProxyVideoSink =
+		new ProxyVideoSink(CallSetupTracer.CAPTURER_START, CallSetupTracer.FIRST_LOCAL_FRAME);
 	@Nullable
 	private PeerConnectionClient peerConnectionClient = null;
 	@Nullable
@@ -170,9 +222,15 @@ public class CallActivity extends BaseActivity
 	private SurfaceViewRenderer pipRenderer;
 	@Nullable
 	private SurfaceViewRenderer fullscreenRenderer;
+	// Scales the local preview down to the size of the PiP view and caps its frame rate.
+	// Null when it would not save any work, the PiP renderer is then targeted directly.
+	@Nullable
+	private ScalingVideoSink pipPreviewSink;
 	@Nullable
-	private VideoFileRenderer videoFileRenderer;
-	private final List<VideoSink> remoteSinks = new ArrayList<>();
+	private Y4mFileVideoRecorder videoFileRecorder;
+	// Distributes remote frames to the renderer and the optional file recorder, so a slow
+	// recorder cannot hold up the decoder thread that also feeds the screen.
+	private final FanOutVideoSink remoteSinks = new FanOutVideoSink();
 	private Toast logToast;
 	private boolean commandLineRun;
 	private boolean activityRunning;
@@ -203,6 +261,7 @@ public class CallActivity extends BaseActivity
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		Thread.setDefaultUncaughtExceptionHandler(new UnhandledExceptionHandler(this));
+		IceServerCache.init(this);
 		
 		// Set window styles for fullscreen-window size. Needs to be done before
 		// adding content.
@@ -238,38 +297,9 @@ public class CallActivity extends BaseActivity
 		});
 		
 		fullscreenRenderer.setOnClickListener(listener);
-		remoteSinks.add(remoteProxyRenderer);
+		remoteSinks.addSink(remoteProxyRenderer, FanOutVideoSink.Policy.UNLIMITED);
 		
 		final Intent intent = getIntent();
-		final EglBase eglBase = EglBase.create();
-		
-		// Create video renderers.
-		pipRenderer.init(eglBase.getEglBaseContext(), null);
-		pipRenderer.setScalingType(ScalingType.SCALE_ASPECT_FIT);
-		String saveRemoteVideoToFile = intent.getStringExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
-		
-		// When saveRemoteVideoToFile is set we save the video from the remote to a file.
-		if (saveRemoteVideoToFile != null) {
-			int videoOutWidth = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
-			int videoOutHeight = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
-			try {
-				videoFileRenderer = new VideoFileRenderer(
-					saveRemoteVideoToFile, videoOutWidth, videoOutHeight, eglBase.getEglBaseContext());
-				remoteSinks.add(videoFileRenderer);
-			} catch (IOException e) {
-				throw new RuntimeException(
-					"Failed to open video file for output: " + saveRemoteVideoToFile, e);
-			}
-		}
-		fullscreenRenderer.init(eglBase.getEglBaseContext(), null);
-		fullscreenRenderer.setScalingType(ScalingType.SCALE_ASPECT_FILL);
-		
-		pipRenderer.setZOrderMediaOverlay(true);
-		pipRenderer.setEnableHardwareScaler(true /* enabled */);
-		fullscreenRenderer.setEnableHardwareScaler(false /* enabled */);
-		// Start with local feed in fullscreen and swap it to the pip when the call is connected.
-		setSwappedFeeds(true /* isSwappedFeeds */);
-		
 		// Check for mandatory permissions.
 		for (String permission : MANDATORY_PERMISSIONS) {
 			if (checkCallingOrSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
@@ -301,7 +331,6 @@ public class CallActivity extends BaseActivity
 		}
 		
 		boolean loopback = intent.getBooleanExtra(EXTRA_LOOPBACK, false);
-		boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
 		
 		int videoWidth = intent.getIntExtra(EXTRA_VIDEO_WIDTH, 0);
 		int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
@@ -314,30 +343,15 @@ public class CallActivity extends BaseActivity
 			videoWidth = displayMetrics.widthPixels;
 			videoHeight = displayMetrics.heightPixels;
 		}
-		DataChannelParameters dataChannelParameters = null;
-		if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, false)) {
-			dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
-				intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
-				intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
-				intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
+		// Only the PiP preview is scaled. The full screen renderer crops to fill the screen,
+		// so frames scaled to fit its bounds would be stretched and blurry.
+		final int pipPreviewFps = intent.getIntExtra(EXTRA_PIP_PREVIEW_FPS, 0);
+		if (pipPreviewFps > 0 || !capturesTextureFrames()) {
+			pipPreviewSink = createPreviewSink(pipRenderer);
+			pipPreviewSink.setMaxFramerate(pipPreviewFps);
 		}
 		peerConnectionParameters =
-			new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true), loopback,
-				tracing, videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
-				intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
-				intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
-				intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
-				intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
-				intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
-				intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
-				intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, false),
-				intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
-				intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
-				intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
-				intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
-				intent.getBooleanExtra(EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, false),
-				intent.getBooleanExtra(EXTRA_ENABLE_RTCEVENTLOG, false),
-				intent.getBooleanExtra(EXTRA_USE_LEGACY_AUDIO_DEVICE, false), dataChannelParameters);
+			createPeerConnectionParameters(intent, videoWidth, videoHeight);
 		commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
 		int runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 		
@@ -381,14 +395,44 @@ public class CallActivity extends BaseActivity
 			}, runTimeMs);
 		}
 		
-		// Create peer connection client.
-		peerConnectionClient = new PeerConnectionClient(
-			getApplicationContext(), eglBase, peerConnectionParameters, CallActivity.this);
-		PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
-		if (loopback) {
-			options.networkIgnoreMask = 0;
+		// Create peer connection client. A factory pre-warmed by org.appspot.apprtc.ConnectActivity
+		// is adopted when it was created with the same configuration.
+		peerConnectionClient = PeerConnectionClient.obtain(getApplicationContext(),
+			peerConnectionParameters, createFactoryOptions(loopback), CallActivity.this);
+		
+		final EglBase eglBase = peerConnectionClient.getRootEglBase();
+		
+		// Create video renderers.
+		pipRenderer.init(eglBase.getEglBaseContext(), null);
+		pipRenderer.setScalingType(ScalingType.SCALE_ASPECT_FIT);
+		String saveRemoteVideoToFile = intent.getStringExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
+		
+		// When saveRemoteVideoToFile is set we save the video from the remote to a file.
+		if (saveRemoteVideoToFile != null) {
+			int videoOutWidth = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
+			int videoOutHeight = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
+			int videoOutFps = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FPS, 0);
+			try {
+				// The recorder scales and writes on its own threads and drops frames instead of
+				// blocking when the disk falls behind. It writes a constant frame rate file at
+				// the cap, repeating the previous frame for dropped ones to keep the timing.
+				videoFileRecorder = new Y4mFileVideoRecorder(
+					saveRemoteVideoToFile, videoOutWidth, videoOutHeight, videoOutFps);
+				remoteSinks.addSink(videoFileRecorder,
+					new FanOutVideoSink.Policy(videoOutFps, 0, 0, false));
+			} catch (IOException e) {
+				throw new RuntimeException(
+					"Failed to open video file for output: " + saveRemoteVideoToFile, e);
+			}
 		}
-		peerConnectionClient.createPeerConnectionFactory(options);
+		fullscreenRenderer.init(eglBase.getEglBaseContext(), null);
+		fullscreenRenderer.setScalingType(ScalingType.SCALE_ASPECT_FILL);
+		
+		pipRenderer.setZOrderMediaOverlay(true);
+		pipRenderer.setEnableHardwareScaler(true /* enabled */);
+		fullscreenRenderer.setEnableHardwareScaler(false /* enabled */);
+		// Start with local feed in fullscreen and swap it to the pip when the call is connected.
+		setSwappedFeeds(true /* isSwappedFeeds */);
 		
 		if (screencaptureEnabled) {
 			startScreenCapture();
@@ -397,6 +441,48 @@ public class CallActivity extends BaseActivity
 		}
 	}
 	
+	/**
+	 * Creates the peer connection parameters from the extras of a call intent.
+	 * Also used by org.appspot.apprtc.ConnectActivity to pre-warm the factory.
+	 */
+	static PeerConnectionParameters createPeerConnectionParameters(
+		final Intent intent, final int videoWidth, final int videoHeight) {
+		
+		final boolean loopback = intent.getBooleanExtra(EXTRA_LOOPBACK, false);
+		final boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
+		DataChannelParameters dataChannelParameters = null;
+		if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, false)) {
+			dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
+				intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
+				intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
+				intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
+		}
+		return new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true), loopback,
+			tracing, videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
+			intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
+			intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
+			intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
+			intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
+			intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
+			intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
+			intent.getBooleanExtra(EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, false),
+			intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
+			intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
+			intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
+			intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
+			intent.getBooleanExtra(EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, false),
+			intent.getBooleanExtra(EXTRA_ENABLE_RTCEVENTLOG, false),
+			intent.getBooleanExtra(EXTRA_USE_LEGACY_AUDIO_DEVICE, false), dataChannelParameters);
+	}
+	
+	static PeerConnectionFactory.Options createFactoryOptions(final boolean loopback) {
+		final PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
+		if (loopback) {
+			options.networkIgnoreMask = 0;
+		}
+		return options;
+	}
+	
 	@TargetApi(17)
 	private DisplayMetrics getDisplayMetrics() {
 		DisplayMetrics displayMetrics = new DisplayMetrics();
@@ -441,6 +527,20 @@ public class CallActivity extends BaseActivity
 		return getIntent().getBooleanExtra(EXTRA_CAPTURETOTEXTURE_ENABLED, false);
 	}
 	
+	// Whether the capturer created by createVideoCapturer delivers texture frames. Those are
+	// scaled on the GPU when rendered, so scaling them beforehand saves nothing.
+	private boolean capturesTextureFrames() {
+		final Intent intent = getIntent();
+		if (intent.getStringExtra(EXTRA_SYNTHETIC_VIDEO) != null) {
+			return captureToTexture();
+		} else if (intent.getStringExtra(EXTRA_VIDEO_FILE_AS_CAMERA) != null) {
+			return false;
+		} else if (screencaptureEnabled || surfaceCameraCaptureEnabled || useCamera2()) {
+			return true;
+		}
+		return captureToTexture();
+	}
+	
 	private @Nullable
 	VideoCapturer createCameraCapturer(CameraEnumerator enumerator) {
 		final String[] deviceNames = enumerator.getDeviceNames();
@@ -621,10 +721,15 @@ public class CallActivity extends BaseActivity
 			return;
 		}
 		callStartedTimeMs = System.currentTimeMillis();
+		CallSetupTracer.startCall(roomConnectionParameters.roomId);
 		
 		// Start room connection.
 		logAndToast(getString(R.string.connecting_to, roomConnectionParameters.roomUrl));
 		appRtcClient.connectToRoom(roomConnectionParameters);
+		// Gather ICE candidates while the room join request is in flight.
+		if (peerConnectionClient != null) {
+			peerConnectionClient.createStandbyPeerConnection();
+		}
 		
 		// Create and audio manager that will take care of audio routing,
 		// audio modes, audio device enumeration etc.
@@ -647,6 +752,7 @@ public class CallActivity extends BaseActivity
 	private void callConnected() {
 		final long delta = System.currentTimeMillis() - callStartedTimeMs;
 		Log.i(TAG, "Call connected: delay=" + delta + "ms");
+		CallSetupTracer.endPhase(CallSetupTracer.CALL_SETUP);
 		if (peerConnectionClient == null || isError) {
 			Log.w(TAG, "Call is connected in closed or error state");
 			return;
@@ -670,6 +776,14 @@ public class CallActivity extends BaseActivity
 		activityRunning = false;
 		remoteProxyRenderer.setTarget(null);
 		localProxyVideoSink.setTarget(null);
+		Logging.d(TAG, "Frames dropped without a renderer: local "
+			+ localProxyVideoSink.getDroppedFrames() + ", remote " + remoteProxyRenderer.getDroppedFrames());
+		// Stop local media and notify the peer first, both return without waiting.
+		if (peerConnectionClient != null) {
+			// Keep the factory and sources for the next call.
+			peerConnectionClient.release();
+			peerConnectionClient = null;
+		}
 		if (appRtcClient != null) {
 			appRtcClient.disconnectFromRoom();
 			appRtcClient = null;
@@ -678,22 +792,22 @@ public class CallActivity extends BaseActivity
 			pipRenderer.release();
 			pipRenderer = null;
 		}
-		if (videoFileRenderer != null) {
-			videoFileRenderer.release();
-			videoFileRenderer = null;
+		remoteSinks.release();
+		if (videoFileRecorder != null) {
+			Logging.d(TAG, "Remote video recorded: " + videoFileRecorder.getRecordedFrames()
+				+ " frames, dropped: " + videoFileRecorder.getDroppedFrames());
+			videoFileRecorder.release();
+			videoFileRecorder = null;
 		}
 		if (fullscreenRenderer != null) {
 			fullscreenRenderer.release();
 			fullscreenRenderer = null;
 		}
-		if (peerConnectionClient != null) {
-			peerConnectionClient.close();
-			peerConnectionClient = null;
-		}
 		if (audioManager != null) {
 			audioManager.stop();
 			audioManager = null;
 		}
+		stopCallSetupTrace();
 		if (iceConnected && !isError) {
 			setResult(RESULT_OK);
 		} else {
@@ -702,6 +816,16 @@ public class CallActivity extends BaseActivity
 		finish();
 	}
 	
+	private void stopCallSetupTrace() {
+		CallSetupTracer.stopCall();
+		Log.i(TAG, "Call setup trace: " + CallSetupTracer.getSummary());
+		if (peerConnectionParameters != null && peerConnectionParameters.tracing) {
+			final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+			CallSetupTracer.exportTrace(new File(Environment.getExternalStorageDirectory(),
+				"call-setup-trace_" + dateFormat.format(new Date()) + ".json"));
+		}
+	}
+	
 	private void disconnectWithErrorMessage(final String errorMessage) {
 		if (commandLineRun || !activityRunning) {
 			Log.e(TAG, "Critical error: " + errorMessage);
@@ -750,9 +874,22 @@ public class CallActivity extends BaseActivity
 	VideoCapturer createVideoCapturer() {
 		final VideoCapturer videoCapturer;
 		String videoFileAsCamera = getIntent().getStringExtra(EXTRA_VIDEO_FILE_AS_CAMERA);
-		if (videoFileAsCamera != null) {
+		String syntheticVideo = getIntent().getStringExtra(EXTRA_SYNTHETIC_VIDEO);
+		if (syntheticVideo != null) {
+			final SyntheticSurfaceCapture.Pattern pattern;
 			try {
-				videoCapturer = new FileVideoCapturer(videoFileAsCamera);
+				pattern = SyntheticSurfaceCapture.Pattern.valueOf(syntheticVideo.toUpperCase(Locale.US));
+			} catch (IllegalArgumentException e) {
+				reportError("Unknown synthetic video pattern: " + syntheticVideo);
+				return null;
+			}
+			Logging.d(TAG, "Creating synthetic video capturer: " + pattern);
+			videoCapturer = new SyntheticSurfaceCapture(
+				CameraSurfaceCapture.DEFAULT_CAPTURE_LISTENER, pattern, true, captureToTexture());
+		} else if (videoFileAsCamera != null) {
+			try {
+				// Several files separated by the path separator are played in turn as a loop.
+				videoCapturer = new Y4mFileVideoCapture(videoFileAsCamera.split(File.pathSeparator));
 			} catch (IOException e) {
 				reportError("Failed to open video file for emulated camera");
 				return null;
@@ -780,10 +917,24 @@ public class CallActivity extends BaseActivity
 		return videoCapturer;
 	}
 	
+	// Returns a sink that renders the local preview no larger than the renderer view.
+	private static ScalingVideoSink createPreviewSink(SurfaceViewRenderer renderer) {
+		final ScalingVideoSink sink = new ScalingVideoSink(renderer);
+		renderer.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+			@Override
+			public void onLayoutChange(View v, int left, int top, int right, int bottom,
+				int oldLeft, int oldTop, int oldRight, int oldBottom) {
+				sink.setMaxSize(right - left, bottom - top);
+			}
+		});
+		return sink;
+	}
+	
 	private void setSwappedFeeds(boolean isSwappedFeeds) {
 		Logging.d(TAG, "setSwappedFeeds: " + isSwappedFeeds);
 		this.isSwappedFeeds = isSwappedFeeds;
-		localProxyVideoSink.setTarget(isSwappedFeeds ? fullscreenRenderer : pipRenderer);
+		localProxyVideoSink.setTarget(isSwappedFeeds ? fullscreenRenderer
+			: pipPreviewSink != null ? pipPreviewSink : pipRenderer);
 		remoteProxyRenderer.setTarget(isSwappedFeeds ? pipRenderer : fullscreenRenderer);
 		fullscreenRenderer.setMirror(isSwappedFeeds);
 		pipRenderer.setMirror(!isSwappedFeeds);
@@ -872,6 +1023,20 @@ public class CallActivity extends BaseActivity
 		});
 	}
 	
+	@Override
+	public void onIceServersAdded(final List<PeerConnection.IceServer> iceServers) {
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				if (peerConnectionClient == null) {
+					Log.e(TAG, "Received ICE servers for a non-initialized peer connection.");
+					return;
+				}
+				peerConnectionClient.addIceServers(iceServers);
+			}
+		});
+	}
+	
 	@Override
 	public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
 		runOnUiThread(new Runnable() {
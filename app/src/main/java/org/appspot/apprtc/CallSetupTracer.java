@@ -0,0 +1,258 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records monotonic timestamps for the phases of a call setup and exports them in the Chrome
+ * trace event format, so a trace can be opened in chrome://tracing or Perfetto.
+ *
+ * <p>Phases span several objects (room fetcher, WebSocket channel, peer connection client and the
+ * activity), so the tracer is process wide like PeerConnectionFactory internal tracing. All
+ * methods are thread safe and are no-ops unless a call is being traced.
+ */
+public class CallSetupTracer {
+  private static final String TAG = "CallSetupTracer";
+
+  // Phases (spans).
+  public static final String CALL_SETUP = "call_setup";
+  public static final String ROOM_JOIN = "room_join";
+  public static final String TURN_FETCH = "turn_fetch";
+  public static final String WEBSOCKET_OPEN = "websocket_open";
+  public static final String FACTORY_CREATE = "factory_create";
+  public static final String PEER_CONNECTION_CREATE = "peer_connection_create";
+  public static final String CAPTURER_START = "capturer_start";
+  public static final String CREATE_OFFER = "create_offer";
+  public static final String CREATE_ANSWER = "create_answer";
+  public static final String SET_LOCAL_DESCRIPTION = "set_local_description";
+  public static final String SET_REMOTE_DESCRIPTION = "set_remote_description";
+  public static final String ICE_CONNECT = "ice_connect";
+
+  // Events (instants). Only the first occurrence per call is recorded.
+  public static final String WEBSOCKET_REGISTER = "websocket_register";
+  public static final String FIRST_LOCAL_FRAME = "first_local_frame";
+  public static final String FIRST_LOCAL_CANDIDATE = "first_local_candidate";
+  public static final String FIRST_REMOTE_CANDIDATE = "first_remote_candidate";
+  public static final String ICE_CHECKING = "ice_checking";
+  public static final String ICE_CONNECTED = "ice_connected";
+  public static final String FIRST_REMOTE_FRAME = "first_remote_frame";
+
+  private static final String CATEGORY = "call_setup";
+  private static final int PID = android.os.Process.myPid();
+
+  private static class TraceEvent {
+    final String name;
+    final long startNs;
+    final long durationNs; // -1 for instant events.
+    final long threadId;
+
+    TraceEvent(String name, long startNs, long durationNs, long threadId) {
+      this.name = name;
+      this.startNs = startNs;
+      this.durationNs = durationNs;
+      this.threadId = threadId;
+    }
+  }
+
+  private static class OpenPhase {
+    final long startNs;
+    final long threadId;
+
+    OpenPhase(long startNs, long threadId) {
+      this.startNs = startNs;
+      this.threadId = threadId;
+    }
+  }
+
+  private static final Object lock = new Object();
+  private static final List<TraceEvent> events = new ArrayList<>();
+  private static final Map<String, OpenPhase> openPhases = new HashMap<>();
+  private static final Set<String> recordedInstants = new HashSet<>();
+  private static final Map<Long, String> threadNames = new LinkedHashMap<>();
+  private static boolean active;
+  private static long startTimeNs;
+  private static String callName;
+
+  private CallSetupTracer() {}
+
+  /**
+   * Starts tracing a new call. Events of the previous call are discarded.
+   */
+  public static void startCall(String name) {
+    synchronized (lock) {
+      events.clear();
+      openPhases.clear();
+      recordedInstants.clear();
+      threadNames.clear();
+      callName = name;
+      startTimeNs = System.nanoTime();
+      active = true;
+    }
+    beginPhase(CALL_SETUP);
+  }
+
+  /**
+   * Stops tracing. Phases still open are closed at the current time.
+   */
+  public static void stopCall() {
+    final long now = System.nanoTime();
+    synchronized (lock) {
+      if (!active) {
+        return;
+      }
+      for (Map.Entry<String, OpenPhase> entry : openPhases.entrySet()) {
+        OpenPhase phase = entry.getValue();
+        events.add(new TraceEvent(entry.getKey(), phase.startNs, now - phase.startNs,
+            phase.threadId));
+      }
+      openPhases.clear();
+      active = false;
+    }
+  }
+
+  public static void beginPhase(String name) {
+    final long now = System.nanoTime();
+    synchronized (lock) {
+      if (!active || openPhases.containsKey(name)) {
+        return;
+      }
+      openPhases.put(name, new OpenPhase(now, currentThreadId()));
+    }
+  }
+
+  public static void endPhase(String name) {
+    final long now = System.nanoTime();
+    synchronized (lock) {
+      if (!active) {
+        return;
+      }
+      OpenPhase phase = openPhases.remove(name);
+      if (phase != null) {
+        events.add(new TraceEvent(name, phase.startNs, now - phase.startNs, phase.threadId));
+      }
+    }
+  }
+
+  public static void instant(String name) {
+    final long now = System.nanoTime();
+    synchronized (lock) {
+      if (!active || !recordedInstants.add(name)) {
+        return;
+      }
+      events.add(new TraceEvent(name, now, -1, currentThreadId()));
+    }
+  }
+
+  /**
+   * Returns a one line summary of the recorded events in ms since the start of the call.
+   */
+  public static String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    synchronized (lock) {
+      sb.append(callName).append(':');
+      for (TraceEvent event : events) {
+        sb.append(' ').append(event.name).append('@')
+            .append((event.startNs - startTimeNs) / 1000000);
+        if (event.durationNs >= 0) {
+          sb.append('+').append(event.durationNs / 1000000);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the recorded events to |file| as Chrome trace event JSON.
+   */
+  public static boolean exportTrace(File file) {
+    final String json;
+    try {
+      json = toJson().toString();
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to create trace JSON", e);
+      return false;
+    }
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+      writer.write(json);
+      Log.d(TAG, "Call setup trace written to " + file.getAbsolutePath());
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write call setup trace", e);
+      return false;
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+  }
+
+  private static JSONObject toJson() throws JSONException {
+    JSONArray traceEvents = new JSONArray();
+    synchronized (lock) {
+      for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+        JSONObject args = new JSONObject();
+        args.put("name", entry.getValue());
+        JSONObject metadata = new JSONObject();
+        metadata.put("name", "thread_name");
+        metadata.put("ph", "M");
+        metadata.put("pid", PID);
+        metadata.put("tid", entry.getKey());
+        metadata.put("args", args);
+        traceEvents.put(metadata);
+      }
+      for (TraceEvent event : events) {
+        JSONObject json = new JSONObject();
+        json.put("name", event.name);
+        json.put("cat", CATEGORY);
+        json.put("pid", PID);
+        json.put("tid", event.threadId);
+        json.put("ts", (event.startNs - startTimeNs) / 1000);
+        if (event.durationNs >= 0) {
+          json.put("ph", "X");
+          json.put("dur", event.durationNs / 1000);
+        } else {
+          json.put("ph", "i");
+          json.put("s", "p");
+        }
+        traceEvents.put(json);
+      }
+    }
+    JSONObject trace = new JSONObject();
+    trace.put("traceEvents", traceEvents);
+    trace.put("displayTimeUnit", "ms");
+    return trace;
+  }
+
+  // Called with |lock| held.
+  private static long currentThreadId() {
+    Thread thread = Thread.currentThread();
+    long id = thread.getId();
+    if (!threadNames.containsKey(id)) {
+      threadNames.put(id, thread.getName());
+    }
+    return id;
+  }
+}
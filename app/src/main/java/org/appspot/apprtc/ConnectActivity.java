@@ -15,6 +15,8 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
@@ -32,6 +34,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.serenegiant.apprtcmobile.R;
+import com.serenegiant.utils.PermissionCheck;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -63,6 +66,7 @@ public class ConnectActivity extends BaseActivity {
 	private String keyprefRoomList;
 	private ArrayList<String> roomList;
 	private ArrayAdapter<String> adapter;
+	private RoomPrefetcher roomPrefetcher;
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -71,6 +75,7 @@ public class ConnectActivity extends BaseActivity {
 		// Get setting keys.
 		PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 		sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+		IceServerCache.init(this);
 		keyprefResolution = getString(R.string.pref_resolution_key);
 		keyprefFps = getString(R.string.pref_fps_key);
 		keyprefVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
@@ -94,20 +99,29 @@ public class ConnectActivity extends BaseActivity {
 				return false;
 			}
 		});
+		roomEditText.addTextChangedListener(roomTextWatcher);
 		roomEditText.requestFocus();
 		
 		roomListView = findViewById(R.id.room_listview);
 		roomListView.setEmptyView(findViewById(android.R.id.empty));
 		roomListView.setOnItemClickListener(roomListClickListener);
+		roomListView.setOnItemSelectedListener(roomListSelectedListener);
 		registerForContextMenu(roomListView);
 		ImageButton connectButton = findViewById(R.id.connect_button);
 		connectButton.setOnClickListener(connectListener);
 		addFavoriteButton = findViewById(R.id.add_favorite_button);
 		addFavoriteButton.setOnClickListener(addFavoriteListener);
+		roomPrefetcher = new RoomPrefetcher();
 		
 		// If an implicit VIEW intent is launching the app, go directly to that URL.
 		final Intent intent = getIntent();
 		if ("android.intent.action.VIEW".equals(intent.getAction()) && !commandLineRun) {
+			int loadTestPairs = intent.getIntExtra(CallActivity.EXTRA_LOADTEST_PAIRS, 0);
+			if (loadTestPairs > 0) {
+				runSignalingLoadTest(loadTestPairs,
+					intent.getIntExtra(CallActivity.EXTRA_LOADTEST_CANDIDATES, 10));
+				return;
+			}
 			boolean loopback = intent.getBooleanExtra(CallActivity.EXTRA_LOOPBACK, false);
 			int runTimeMs = intent.getIntExtra(CallActivity.EXTRA_RUNTIME, 0);
 			boolean useValuesFromIntent =
@@ -168,6 +182,7 @@ public class ConnectActivity extends BaseActivity {
 	@Override
 	public void onPause() {
 		super.onPause();
+		roomPrefetcher.cancel();
 		String room = roomEditText.getText().toString();
 		String roomListJson = new JSONArray(roomList).toString();
 		sharedPref.edit()
@@ -199,6 +214,18 @@ public class ConnectActivity extends BaseActivity {
 			roomListView.requestFocus();
 			roomListView.setItemChecked(0, true);
 		}
+		if (!commandLineRun) {
+			prewarmPeerConnectionFactory();
+			if (adapter.getCount() > 0 || room.length() > 0) {
+				prefetchRoomServer();
+			}
+		}
+	}
+	
+	@Override
+	protected void onDestroy() {
+		roomPrefetcher.release();
+		super.onDestroy();
 	}
 	
 	@Override
@@ -211,6 +238,45 @@ public class ConnectActivity extends BaseActivity {
 		}
 	}
 	
+	/**
+	 * Runs a headless signaling load test against the configured room server
+	 * and finishes with RESULT_OK when all call pairs completed.
+	 */
+	private void runSignalingLoadTest(int numPairs, int candidatesPerEndpoint) {
+		if (!checkPermissionNetwork()) return;
+		
+		commandLineRun = true;
+		String roomUrl = sharedPref.getString(
+			keyprefRoomServerUrl, getString(R.string.pref_room_server_url_default));
+		if (!validateUrl(roomUrl)) {
+			commandLineRun = false;
+			return;
+		}
+		Log.d(TAG, "Starting signaling load test with " + numPairs + " pairs at URL " + roomUrl);
+		final SignalingLoadGenerator loadGenerator = new SignalingLoadGenerator(roomUrl,
+			getIntent().getStringExtra(CallActivity.EXTRA_URLPARAMETERS), numPairs,
+			candidatesPerEndpoint, new SignalingLoadGenerator.LoadTestEvents() {
+			@Override
+			public void onLoadTestProgress(int finishedPairs, int totalPairs) {
+				Log.d(TAG, "Load test progress: " + finishedPairs + "/" + totalPairs);
+			}
+			
+			@Override
+			public void onLoadTestComplete(final SignalingLoadGenerator.Report report) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Log.i(TAG, "Load test result: " + report);
+						setResult(report.failedPairs == 0 ? RESULT_OK : RESULT_CANCELED);
+						commandLineRun = false;
+						finish();
+					}
+				});
+			}
+		});
+		loadGenerator.start();
+	}
+	
 	/**
 	 * Get a value from the shared preference or from the intent, if it does not
 	 * exist the default is used.
@@ -285,6 +351,49 @@ public class ConnectActivity extends BaseActivity {
 		String roomUrl = sharedPref.getString(
 			keyprefRoomServerUrl, getString(R.string.pref_room_server_url_default));
 		
+		// Start AppRTCMobile activity.
+		Log.d(TAG, "Connecting to room " + roomId + " at URL " + roomUrl);
+		if (validateUrl(roomUrl)) {
+			Intent intent = createCallIntent(
+				roomUrl, roomId, commandLineRun, loopback, useValuesFromIntent, runTimeMs);
+			startActivityForResult(intent, CONNECTION_REQUEST);
+		}
+	}
+	
+	/**
+	 * Pre-warm the peer connection factory with the current settings
+	 * so that the next call does not have to create it.
+	 */
+	private void prewarmPeerConnectionFactory() {
+		final String roomUrl = sharedPref.getString(
+			keyprefRoomServerUrl, getString(R.string.pref_room_server_url_default));
+		final Intent intent = createCallIntent(roomUrl, "", false, false, false, 0);
+		PeerConnectionClient.prewarm(getApplicationContext(),
+			CallActivity.createPeerConnectionParameters(intent, 0, 0),
+			CallActivity.createFactoryOptions(false));
+	}
+	
+	/**
+	 * Prefetch the network resources of the room server when a call is likely,
+	 * e.g. a room is being typed or favorites are shown.
+	 */
+	private void prefetchRoomServer() {
+		final String roomUrl = sharedPref.getString(
+			keyprefRoomServerUrl, getString(R.string.pref_room_server_url_default));
+		if ((URLUtil.isHttpsUrl(roomUrl) || URLUtil.isHttpUrl(roomUrl))
+			&& PermissionCheck.hasNetwork(this)) {
+			
+			roomPrefetcher.prefetch(roomUrl);
+		}
+	}
+	
+	/**
+	 * Create the intent to start CallActivity from the settings
+	 * (or from the extras of the intent that started this activity).
+	 */
+	private Intent createCallIntent(String roomUrl, String roomId, boolean commandLineRun,
+		boolean loopback, boolean useValuesFromIntent, int runTimeMs) {
+		
 		boolean useSurfaceCameraCapture = true;
 //		boolean useSurfaceCameraCapture = sharedPrefGetBoolean(R.string.pref_screencapture_key,
 //			CallActivity.EXTRA_SURFACE_CAMERA_CAPTURE, R.string.pref_screencapture_default, useValuesFromIntent);
@@ -467,83 +576,94 @@ public class ConnectActivity extends BaseActivity {
 		String protocol = sharedPrefGetString(R.string.pref_data_protocol_key,
 			CallActivity.EXTRA_PROTOCOL, R.string.pref_data_protocol_default, useValuesFromIntent);
 		
-		// Start AppRTCMobile activity.
-		Log.d(TAG, "Connecting to room " + roomId + " at URL " + roomUrl);
-		if (validateUrl(roomUrl)) {
-			Uri uri = Uri.parse(roomUrl);
-			Intent intent = new Intent(this, CallActivity.class);
-			intent.setData(uri);
-			intent.putExtra(CallActivity.EXTRA_ROOMID, roomId);
-			intent.putExtra(CallActivity.EXTRA_LOOPBACK, loopback);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_CALL, videoCallEnabled);
-			intent.putExtra(CallActivity.EXTRA_SURFACE_CAMERA_CAPTURE, useSurfaceCameraCapture);
-			intent.putExtra(CallActivity.EXTRA_SCREENCAPTURE, useScreencapture);
-			intent.putExtra(CallActivity.EXTRA_CAMERA2, useCamera2);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_WIDTH, videoWidth);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
-			intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
-			intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
-			intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
-			intent.putExtra(CallActivity.EXTRA_CAPTURETOTEXTURE_ENABLED, captureToTexture);
-			intent.putExtra(CallActivity.EXTRA_FLEXFEC_ENABLED, flexfecEnabled);
-			intent.putExtra(CallActivity.EXTRA_NOAUDIOPROCESSING_ENABLED, noAudioProcessing);
-			intent.putExtra(CallActivity.EXTRA_AECDUMP_ENABLED, aecDump);
-			intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, saveInputAudioToFile);
-			intent.putExtra(CallActivity.EXTRA_OPENSLES_ENABLED, useOpenSLES);
-			intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AEC, disableBuiltInAEC);
-			intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AGC, disableBuiltInAGC);
-			intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_NS, disableBuiltInNS);
-			intent.putExtra(CallActivity.EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, disableWebRtcAGCAndHPF);
-			intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE, audioStartBitrate);
-			intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
-			intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
-			intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
-			intent.putExtra(CallActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
-			intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
-			intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
-			intent.putExtra(CallActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, useLegacyAudioDevice);
+		Intent intent = new Intent(this, CallActivity.class);
+		intent.setData(Uri.parse(roomUrl));
+		intent.putExtra(CallActivity.EXTRA_ROOMID, roomId);
+		intent.putExtra(CallActivity.EXTRA_LOOPBACK, loopback);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_CALL, videoCallEnabled);
+		intent.putExtra(CallActivity.EXTRA_SURFACE_CAMERA_CAPTURE, useSurfaceCameraCapture);
+		intent.putExtra(CallActivity.EXTRA_SCREENCAPTURE, useScreencapture);
+		intent.putExtra(CallActivity.EXTRA_CAMERA2, useCamera2);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_WIDTH, videoWidth);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
+		intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
+		intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
+		intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
+		intent.putExtra(CallActivity.EXTRA_CAPTURETOTEXTURE_ENABLED, captureToTexture);
+		intent.putExtra(CallActivity.EXTRA_FLEXFEC_ENABLED, flexfecEnabled);
+		intent.putExtra(CallActivity.EXTRA_NOAUDIOPROCESSING_ENABLED, noAudioProcessing);
+		intent.putExtra(CallActivity.EXTRA_AECDUMP_ENABLED, aecDump);
+		intent.putExtra(CallActivity.EXTRA_SAVE_INPUT_AUDIO_TO_FILE_ENABLED, saveInputAudioToFile);
+		intent.putExtra(CallActivity.EXTRA_OPENSLES_ENABLED, useOpenSLES);
+		intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AEC, disableBuiltInAEC);
+		intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_AGC, disableBuiltInAGC);
+		intent.putExtra(CallActivity.EXTRA_DISABLE_BUILT_IN_NS, disableBuiltInNS);
+		intent.putExtra(CallActivity.EXTRA_DISABLE_WEBRTC_AGC_AND_HPF, disableWebRtcAGCAndHPF);
+		intent.putExtra(CallActivity.EXTRA_AUDIO_BITRATE, audioStartBitrate);
+		intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
+		intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
+		intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
+		intent.putExtra(CallActivity.EXTRA_ENABLE_RTCEVENTLOG, rtcEventLogEnabled);
+		intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
+		intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
+		intent.putExtra(CallActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, useLegacyAudioDevice);
+		
+		intent.putExtra(CallActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
+		
+		if (dataChannelEnabled) {
+			intent.putExtra(CallActivity.EXTRA_ORDERED, ordered);
+			intent.putExtra(CallActivity.EXTRA_MAX_RETRANSMITS_MS, maxRetrMs);
+			intent.putExtra(CallActivity.EXTRA_MAX_RETRANSMITS, maxRetr);
+			intent.putExtra(CallActivity.EXTRA_PROTOCOL, protocol);
+			intent.putExtra(CallActivity.EXTRA_NEGOTIATED, negotiated);
+			intent.putExtra(CallActivity.EXTRA_ID, id);
+		}
+		
+		if (useValuesFromIntent) {
+			if (getIntent().hasExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA)) {
+				String videoFileAsCamera =
+					getIntent().getStringExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA);
+				intent.putExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA, videoFileAsCamera);
+			}
 			
-			intent.putExtra(CallActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
+			if (getIntent().hasExtra(CallActivity.EXTRA_SYNTHETIC_VIDEO)) {
+				intent.putExtra(CallActivity.EXTRA_SYNTHETIC_VIDEO,
+					getIntent().getStringExtra(CallActivity.EXTRA_SYNTHETIC_VIDEO));
+			}
 			
-			if (dataChannelEnabled) {
-				intent.putExtra(CallActivity.EXTRA_ORDERED, ordered);
-				intent.putExtra(CallActivity.EXTRA_MAX_RETRANSMITS_MS, maxRetrMs);
-				intent.putExtra(CallActivity.EXTRA_MAX_RETRANSMITS, maxRetr);
-				intent.putExtra(CallActivity.EXTRA_PROTOCOL, protocol);
-				intent.putExtra(CallActivity.EXTRA_NEGOTIATED, negotiated);
-				intent.putExtra(CallActivity.EXTRA_ID, id);
+			if (getIntent().hasExtra(CallActivity.EXTRA_PIP_PREVIEW_FPS)) {
+				intent.putExtra(CallActivity.EXTRA_PIP_PREVIEW_FPS,
+					getIntent().getIntExtra(CallActivity.EXTRA_PIP_PREVIEW_FPS, 0));
 			}
 			
-			if (useValuesFromIntent) {
-				if (getIntent().hasExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA)) {
-					String videoFileAsCamera =
-						getIntent().getStringExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA);
-					intent.putExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA, videoFileAsCamera);
-				}
-				
-				if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE)) {
-					String saveRemoteVideoToFile =
-						getIntent().getStringExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
-					intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE, saveRemoteVideoToFile);
-				}
-				
-				if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH)) {
-					int videoOutWidth =
-						getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
-					intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, videoOutWidth);
-				}
-				
-				if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT)) {
-					int videoOutHeight =
-						getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
-					intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, videoOutHeight);
-				}
+			if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE)) {
+				String saveRemoteVideoToFile =
+					getIntent().getStringExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
+				intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE, saveRemoteVideoToFile);
 			}
 			
-			startActivityForResult(intent, CONNECTION_REQUEST);
+			if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH)) {
+				int videoOutWidth =
+					getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
+				intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, videoOutWidth);
+			}
+			
+			if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT)) {
+				int videoOutHeight =
+					getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
+				intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, videoOutHeight);
+			}
+			
+			if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FPS)) {
+				int videoOutFps =
+					getIntent().getIntExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FPS, 0);
+				intent.putExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_FPS, videoOutFps);
+			}
 		}
+		
+		return intent;
 	}
 	
 	private boolean validateUrl(String url) {
@@ -576,6 +696,32 @@ public class ConnectActivity extends BaseActivity {
 			}
 		};
 	
+	private final AdapterView.OnItemSelectedListener roomListSelectedListener =
+		new AdapterView.OnItemSelectedListener() {
+			@Override
+			public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
+				prefetchRoomServer();
+			}
+			
+			@Override
+			public void onNothingSelected(AdapterView<?> adapterView) {}
+		};
+	
+	private final TextWatcher roomTextWatcher = new TextWatcher() {
+		@Override
+		public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+		
+		@Override
+		public void onTextChanged(CharSequence s, int start, int before, int count) {}
+		
+		@Override
+		public void afterTextChanged(Editable s) {
+			if (s.length() > 0 && !commandLineRun) {
+				prefetchRoomServer();
+			}
+		}
+	};
+	
 	private final OnClickListener addFavoriteListener = new OnClickListener() {
 		@Override
 		public void onClick(View view) {
@@ -10,12 +10,10 @@ package org.appspot.apprtc;/*
 
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -55,6 +53,10 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   @Nullable
   private TCPChannelClient tcpClient;
   private RoomConnectionParameters connectionParameters;
+  // Used on the executor thread only.
+  private final SignalingCodec codec = new SignalingCodec();
+  // True once the remote peer advertised accepting compressed session descriptions.
+  private boolean peerAcceptsCompression;
 
   private enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
 
@@ -156,10 +158,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           reportError("Sending offer SDP in non connected state.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "offer");
-        sendMessage(json.toString());
+        sendMessage(codec.encodeSessionDescription(sdp, peerAcceptsCompression));
       }
     });
   }
@@ -169,10 +168,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "answer");
-        sendMessage(json.toString());
+        sendMessage(codec.encodeSessionDescription(sdp, peerAcceptsCompression));
       }
     });
   }
@@ -182,17 +178,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-
         if (roomState != ConnectionState.CONNECTED) {
           reportError("Sending ICE candidate in non connected state.");
           return;
         }
-        sendMessage(json.toString());
+        sendMessage(codec.encodeCandidate(candidate));
       }
     });
   }
@@ -203,19 +193,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "remove-candidates");
-        JSONArray jsonArray = new JSONArray();
-        for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
-        }
-        jsonPut(json, "candidates", jsonArray);
-
         if (roomState != ConnectionState.CONNECTED) {
           reportError("Sending ICE candidate removals in non connected state.");
           return;
         }
-        sendMessage(json.toString());
+        sendMessage(codec.encodeCandidateRemovals(candidates));
       }
     });
   }
@@ -248,24 +230,18 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   @Override
   public void onTCPMessage(String msg) {
     try {
-      JSONObject json = new JSONObject(msg);
-      String type = json.optString("type");
-      if (type.equals("candidate")) {
-        events.onRemoteIceCandidate(toJavaCandidate(json));
-      } else if (type.equals("remove-candidates")) {
-        JSONArray candidateArray = json.getJSONArray("candidates");
-        IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-        for (int i = 0; i < candidateArray.length(); ++i) {
-          candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-        }
-        events.onRemoteIceCandidatesRemoved(candidates);
-      } else if (type.equals("answer")) {
-        SessionDescription sdp = new SessionDescription(
-            SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-        events.onRemoteDescription(sdp);
-      } else if (type.equals("offer")) {
-        SessionDescription sdp = new SessionDescription(
-            SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
+      SignalingCodec.Message message = SignalingCodec.decode(msg);
+      SignalingCodec.Type type = message != null ? message.type : null;
+      if (type == SignalingCodec.Type.CANDIDATE) {
+        events.onRemoteIceCandidate(message.candidate);
+      } else if (type == SignalingCodec.Type.REMOVE_CANDIDATES) {
+        events.onRemoteIceCandidatesRemoved(message.candidates);
+      } else if (type == SignalingCodec.Type.ANSWER) {
+        peerAcceptsCompression = message.acceptsCompression;
+        events.onRemoteDescription(message.sdp);
+      } else if (type == SignalingCodec.Type.OFFER) {
+        peerAcceptsCompression = message.acceptsCompression;
+        SessionDescription sdp = message.sdp;
 
         SignalingParameters parameters = new SignalingParameters(
             // Ice servers are not needed for direct connections.
@@ -282,7 +258,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       } else {
         reportError("Unexpected TCP message: " + msg);
       }
-    } catch (JSONException e) {
+    } catch (IOException e) {
       reportError("TCP message JSON parsing error: " + e.toString());
     }
   }
@@ -320,28 +296,4 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       }
     });
   }
-
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
-  // Converts a Java candidate to a JSONObject.
-  private static JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
@@ -0,0 +1,217 @@
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persistent cache of the ICE servers returned by the TURN servers' ice_server_url and of the
+ * ice_server_url returned by each room server, so that a call can start with the TURN servers
+ * of the previous call instead of waiting for the TURN request.
+ *
+ * <p>Entries expire with the lifetime of their credentials and should be refreshed in the
+ * background once {@link #needsRefresh} returns true. The cache is process wide and kept in
+ * memory only until {@link #init} is called with a context.
+ */
+public class IceServerCache {
+  private static final String TAG = "IceServerCache";
+  private static final String PREFERENCES_NAME = "ice_server_cache";
+  private static final String ICE_SERVER_URL_PREFIX = "ice_server_url:";
+  private static final String ICE_SERVERS_PREFIX = "ice_servers:";
+  // Lifetime of credentials which do not tell their own.
+  private static final long DEFAULT_LIFETIME_MS = 10 * 60 * 1000;
+  // Entries are not used during the last part of their lifetime, so that a call does not start
+  // with credentials about to expire.
+  private static final long EXPIRY_MARGIN_MS = 60 * 1000;
+
+  private static final IceServerCache instance = new IceServerCache();
+
+  private static class Entry {
+    final List<PeerConnection.IceServer> iceServers;
+    final long createdMs;
+    final long expiresMs;
+
+    Entry(List<PeerConnection.IceServer> iceServers, long createdMs, long expiresMs) {
+      this.iceServers = iceServers;
+      this.createdMs = createdMs;
+      this.expiresMs = expiresMs;
+    }
+  }
+
+  private final Map<String, String> iceServerUrls = new HashMap<>();
+  private final Map<String, Entry> entries = new HashMap<>();
+  @Nullable
+  private SharedPreferences preferences;
+
+  public static IceServerCache getInstance() {
+    return instance;
+  }
+
+  private IceServerCache() {}
+
+  /**
+   * Loads the persisted entries. Expired entries are evicted.
+   */
+  public static void init(Context context) {
+    synchronized (instance) {
+      if (instance.preferences == null) {
+        instance.preferences = context.getApplicationContext().getSharedPreferences(
+            PREFERENCES_NAME, Context.MODE_PRIVATE);
+        instance.load();
+      }
+    }
+  }
+
+  @Nullable
+  public synchronized String getIceServerUrl(String roomServer) {
+    return iceServerUrls.get(roomServer);
+  }
+
+  public synchronized void putIceServerUrl(String roomServer, String iceServerUrl) {
+    if (iceServerUrl.equals(iceServerUrls.put(roomServer, iceServerUrl))) {
+      return;
+    }
+    if (preferences != null) {
+      preferences.edit().putString(ICE_SERVER_URL_PREFIX + roomServer, iceServerUrl).apply();
+    }
+  }
+
+  /**
+   * Returns the ICE servers of |iceServerUrl| or null if they are not cached or expire soon.
+   */
+  @Nullable
+  public synchronized List<PeerConnection.IceServer> getIceServers(String iceServerUrl) {
+    Entry entry = entries.get(iceServerUrl);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() > entry.expiresMs - EXPIRY_MARGIN_MS) {
+      Log.d(TAG, "ICE servers of " + iceServerUrl + " expired.");
+      remove(iceServerUrl);
+      return null;
+    }
+    return entry.iceServers;
+  }
+
+  /**
+   * Returns true if the ICE servers of |iceServerUrl| are missing or past half of their lifetime.
+   */
+  public synchronized boolean needsRefresh(String iceServerUrl) {
+    Entry entry = entries.get(iceServerUrl);
+    return entry == null
+        || System.currentTimeMillis() > entry.createdMs + (entry.expiresMs - entry.createdMs) / 2;
+  }
+
+  /**
+   * Stores the ICE servers returned by |iceServerUrl|. |lifetimeMs| is the lifetime of their
+   * credentials, 0 if they have already expired, or a negative value if unknown. Expired
+   * credentials are not cached and evict any cached entry.
+   */
+  public synchronized void putIceServers(
+      String iceServerUrl, List<PeerConnection.IceServer> iceServers, long lifetimeMs) {
+    if (lifetimeMs == 0) {
+      Log.w(TAG, "ICE servers of " + iceServerUrl + " returned expired credentials.");
+      remove(iceServerUrl);
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final Entry entry =
+        new Entry(iceServers, now, now + (lifetimeMs > 0 ? lifetimeMs : DEFAULT_LIFETIME_MS));
+    entries.put(iceServerUrl, entry);
+    if (preferences != null) {
+      try {
+        preferences.edit().putString(ICE_SERVERS_PREFIX + iceServerUrl, toJson(entry)).apply();
+      } catch (JSONException e) {
+        Log.e(TAG, "Failed to store ICE servers: " + e.toString());
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    iceServerUrls.clear();
+    entries.clear();
+    if (preferences != null) {
+      preferences.edit().clear().apply();
+    }
+  }
+
+  private void remove(String iceServerUrl) {
+    entries.remove(iceServerUrl);
+    if (preferences != null) {
+      preferences.edit().remove(ICE_SERVERS_PREFIX + iceServerUrl).apply();
+    }
+  }
+
+  private void load() {
+    final long now = System.currentTimeMillis();
+    final SharedPreferences.Editor editor = preferences.edit();
+    for (Map.Entry<String, ?> pref : preferences.getAll().entrySet()) {
+      final String key = pref.getKey();
+      if (!(pref.getValue() instanceof String)) {
+        editor.remove(key);
+      } else if (key.startsWith(ICE_SERVER_URL_PREFIX)) {
+        iceServerUrls.put(key.substring(ICE_SERVER_URL_PREFIX.length()), (String) pref.getValue());
+      } else if (key.startsWith(ICE_SERVERS_PREFIX)) {
+        try {
+          final Entry entry = fromJson((String) pref.getValue());
+          if (entry.expiresMs - EXPIRY_MARGIN_MS > now) {
+            entries.put(key.substring(ICE_SERVERS_PREFIX.length()), entry);
+            continue;
+          }
+        } catch (JSONException e) {
+          Log.e(TAG, "Failed to load ICE servers: " + e.toString());
+        }
+        editor.remove(key);
+      }
+    }
+    editor.apply();
+    Log.d(TAG, "Loaded ICE servers of " + entries.size() + " URLs.");
+  }
+
+  private static String toJson(Entry entry) throws JSONException {
+    JSONArray servers = new JSONArray();
+    for (PeerConnection.IceServer server : entry.iceServers) {
+      JSONObject json = new JSONObject();
+      json.put("urls", new JSONArray(server.urls));
+      json.put("username", server.username);
+      json.put("credential", server.password);
+      servers.put(json);
+    }
+    JSONObject json = new JSONObject();
+    json.put("created", entry.createdMs);
+    json.put("expires", entry.expiresMs);
+    json.put("iceServers", servers);
+    return json.toString();
+  }
+
+  private static Entry fromJson(String string) throws JSONException {
+    JSONObject json = new JSONObject(string);
+    JSONArray servers = json.getJSONArray("iceServers");
+    List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+    for (int i = 0; i < servers.length(); ++i) {
+      JSONObject server = servers.getJSONObject(i);
+      JSONArray urlsJson = server.getJSONArray("urls");
+      List<String> urls = new ArrayList<>();
+      for (int j = 0; j < urlsJson.length(); ++j) {
+        urls.add(urlsJson.getString(j));
+      }
+      iceServers.add(PeerConnection.IceServer.builder(urls)
+                         .setUsername(server.optString("username"))
+                         .setPassword(server.optString("credential"))
+                         .createIceServer());
+    }
+    return new Entry(iceServers, json.getLong("created"), json.getLong("expires"));
+  }
+}
@@ -11,6 +11,7 @@ package org.appspot.apprtc;/*
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
@@ -74,6 +75,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
@@ -118,30 +120,55 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
+  private static final long DEFAULT_POOL_IDLE_TIMEOUT_MS = 2 * 60 * 1000;
+  // How long the first offer or answer waits for TURN servers that are still being fetched.
+  private static final long TURN_WAIT_TIMEOUT_MS = 2000;
+  // All media is bundled on one transport, so one pooled ICE candidate set is enough.
+  private static final int ICE_CANDIDATE_POOL_SIZE = 1;
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
   // created on the same thread as previously destroyed factory.
   private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Disposes the peer connections and tracks of ended calls, so that hanging up and starting
+  // the next call do not wait for the native teardown. The factory is still disposed on
+  // |executor|.
+  private static final ExecutorService teardownExecutor = Executors.newSingleThreadExecutor();
 
-  private final PCObserver pcObserver = new PCObserver();
-  private final SDPObserver sdpObserver = new SDPObserver();
-  private final Timer statsTimer = new Timer();
+  // Observes the SDP operations of |peerConnection|, created with it.
+  @Nullable
+  private SDPObserver sdpObserver;
+  @Nullable
+  private Timer statsTimer;
   private final EglBase rootEglBase;
   private final Context appContext;
-  private final PeerConnectionParameters peerConnectionParameters;
-  private final PeerConnectionEvents events;
+  // Parameters and events are replaced when a pre-warmed client is adopted by a call.
+  private PeerConnectionParameters peerConnectionParameters;
+  @Nullable
+  private PeerConnectionEvents events;
+  @Nullable
+  private PeerConnectionFactory.Options factoryOptions;
 
   @Nullable
   private PeerConnectionFactory factory;
   @Nullable
   private PeerConnection peerConnection;
+  // Peer connection gathering ICE candidates while the room is joined, see
+  // createStandbyPeerConnection().
+  @Nullable
+  private PeerConnection standbyPeerConnection;
+  // ICE servers reported after the signaling parameters, e.g. TURN servers fetched in parallel
+  // with the room join.
+  private final List<PeerConnection.IceServer> addedIceServers = new ArrayList<>();
   @Nullable
   private AudioSource audioSource;
   @Nullable
   private SurfaceTextureHelper surfaceTextureHelper;
   @Nullable
   private VideoSource videoSource;
+  // Configuration of the pooled sources, which are recreated when a call needs another one.
+  private boolean videoSourceIsScreencast;
+  private boolean audioSourceNoAudioProcessing;
   private boolean preferIsac;
   private boolean videoCapturerStopped;
   private boolean isError;
@@ -163,6 +190,13 @@ public class PeerConnectionClient {
   private boolean isInitiator;
   @Nullable
   private SessionDescription localSdp; // either offer or answer SDP
+  // Creates the first offer or answer once the pending TURN servers arrive, see
+  // holdDescription().
+  @Nullable
+  private Runnable heldDescription;
+  // Set when TURN servers arrived while our offer was waiting for the answer.
+  private boolean iceRestartPending;
+  private boolean iceConnected;
   @Nullable
   private VideoCapturer videoCapturer;
   // enableVideo is set to true if video should be rendered and sent.
@@ -179,7 +213,7 @@ public class PeerConnectionClient {
   private AudioTrack localAudioTrack;
   @Nullable
   private DataChannel dataChannel;
-  private final boolean dataChannelEnabled;
+  private boolean dataChannelEnabled;
   // Enable org.appspot.apprtc.RtcEventLog.
   @Nullable
   private RtcEventLog rtcEventLog;
@@ -318,12 +352,148 @@ public class PeerConnectionClient {
     void onPeerConnectionError(final String description);
   }
 
+  // Idle client, either prepared by prewarm() or returned by release() at the end of a call,
+  // that is adopted by the next call whose factory configuration matches |warmClientKey|.
+  // Guarded by the class lock.
+  @Nullable
+  private static PeerConnectionClient warmClient;
+  @Nullable
+  private static String warmClientKey;
+  @Nullable
+  private static TimerTask evictionTask;
+  private static long poolIdleTimeoutMs = DEFAULT_POOL_IDLE_TIMEOUT_MS;
+  // ICE servers of the previous call. The room usually hands out the same servers, so the
+  // standby peer connection starts gathering with them.
+  private static volatile List<PeerConnection.IceServer> lastIceServers = Collections.emptyList();
+  private static final Timer evictionTimer = new Timer("PCClientEviction", true);
+  private static final Timer turnWaitTimer = new Timer("PCClientTurnWait", true);
+
+  /**
+   * Loads the native library and creates a peer connection factory in the background, so that
+   * the next call started by obtain() with the same factory configuration does not have to.
+   * A previously pre-warmed client with a different configuration is closed.
+   */
+  public static void prewarm(Context appContext, PeerConnectionParameters peerConnectionParameters,
+      PeerConnectionFactory.Options options) {
+    final String key = getFactoryKey(peerConnectionParameters, options);
+    synchronized (PeerConnectionClient.class) {
+      if (warmClient != null && key.equals(warmClientKey)) {
+        return;
+      }
+    }
+    Log.d(TAG, "Pre-warming peer connection factory.");
+    final PeerConnectionClient client =
+        new PeerConnectionClient(appContext, EglBase.create(), peerConnectionParameters, null);
+    client.createPeerConnectionFactory(options);
+    offerToPool(client, key);
+  }
+
+  /**
+   * Sets how long an idle client is kept for the next call before it is disposed.
+   */
+  public static void setPoolIdleTimeout(long timeoutMs) {
+    synchronized (PeerConnectionClient.class) {
+      poolIdleTimeoutMs = timeoutMs;
+    }
+  }
+
+  // Makes |client| the idle client. A client it replaces is closed.
+  private static void offerToPool(final PeerConnectionClient client, String key) {
+    final PeerConnectionClient displaced;
+    synchronized (PeerConnectionClient.class) {
+      displaced = warmClient;
+      warmClient = client;
+      warmClientKey = key;
+      if (evictionTask != null) {
+        evictionTask.cancel();
+      }
+      evictionTask = new TimerTask() {
+        @Override
+        public void run() {
+          synchronized (PeerConnectionClient.class) {
+            if (warmClient != client) {
+              return;
+            }
+            warmClient = null;
+            warmClientKey = null;
+            evictionTask = null;
+          }
+          Log.d(TAG, "Disposing idle peer connection client.");
+          client.close();
+        }
+      };
+      evictionTimer.schedule(evictionTask, poolIdleTimeoutMs);
+    }
+    if (displaced != null && displaced != client) {
+      displaced.close();
+    }
+  }
+
+  // Called with the class lock held.
+  private static void clearPool() {
+    warmClient = null;
+    warmClientKey = null;
+    if (evictionTask != null) {
+      evictionTask.cancel();
+      evictionTask = null;
+    }
+  }
+
+  /**
+   * Returns the pre-warmed client if its factory was created with the same configuration,
+   * otherwise a new client whose factory creation has already been requested. The returned
+   * client owns its EglBase, see getRootEglBase().
+   */
+  public static PeerConnectionClient obtain(Context appContext,
+      PeerConnectionParameters peerConnectionParameters, PeerConnectionFactory.Options options,
+      PeerConnectionEvents events) {
+    final String key = getFactoryKey(peerConnectionParameters, options);
+    final PeerConnectionClient candidate;
+    final String candidateKey;
+    synchronized (PeerConnectionClient.class) {
+      candidate = warmClient;
+      candidateKey = warmClientKey;
+      clearPool();
+    }
+    if (candidate != null) {
+      if (key.equals(candidateKey)) {
+        Log.d(TAG, "Adopting idle peer connection client.");
+        candidate.adopt(peerConnectionParameters, events);
+        return candidate;
+      }
+      Log.d(TAG, "Idle peer connection client does not match call parameters.");
+      candidate.close();
+    }
+    final PeerConnectionClient client =
+        new PeerConnectionClient(appContext, EglBase.create(), peerConnectionParameters, events);
+    client.createPeerConnectionFactory(options);
+    return client;
+  }
+
+  // Factory configuration that has to match for a pre-warmed factory to be adopted.
+  private static String getFactoryKey(
+      PeerConnectionParameters peerConnectionParameters, PeerConnectionFactory.Options options) {
+    return getFieldTrials(peerConnectionParameters)
+        + "|hw=" + peerConnectionParameters.videoCodecHwAcceleration
+        + "|h264high=" + VIDEO_CODEC_H264_HIGH.equals(peerConnectionParameters.videoCodec)
+        + "|legacyAdm=" + peerConnectionParameters.useLegacyAudioDevice
+        + "|opensles=" + peerConnectionParameters.useOpenSLES
+        + "|aec=" + peerConnectionParameters.disableBuiltInAEC
+        + "|agc=" + peerConnectionParameters.disableBuiltInAGC
+        + "|ns=" + peerConnectionParameters.disableBuiltInNS
+        + "|saveAudio=" + peerConnectionParameters.saveInputAudioToFile
+        + "|tracing=" + peerConnectionParameters.tracing
+        + "|ignoreMask=" + (options != null ? options.networkIgnoreMask : -1)
+        + "|encryption=" + (options != null && options.disableEncryption)
+        + "|networkMonitor=" + (options != null && options.disableNetworkMonitor);
+  }
+
   /**
    * Create a org.appspot.apprtc.PeerConnectionClient with the specified parameters. org.appspot.apprtc.PeerConnectionClient takes
    * ownership of |eglBase|.
    */
   public PeerConnectionClient(Context appContext, EglBase eglBase,
-      PeerConnectionParameters peerConnectionParameters, PeerConnectionEvents events) {
+      PeerConnectionParameters peerConnectionParameters, @Nullable PeerConnectionEvents events) {
     this.rootEglBase = eglBase;
     this.appContext = appContext;
     this.events = events;
@@ -350,12 +520,40 @@ public class PeerConnectionClient {
    * This function should only be called once.
    */
   public void createPeerConnectionFactory(PeerConnectionFactory.Options options) {
-    if (factory != null) {
+    if (factory != null || factoryOptions != null) {
       throw new IllegalStateException("PeerConnectionFactory has already been constructed");
     }
+    factoryOptions = options;
     executor.execute(() -> createPeerConnectionFactoryInternal(options));
   }
 
+  /**
+   * Returns the EglBase shared with the video renderers.
+   */
+  public EglBase getRootEglBase() {
+    return rootEglBase;
+  }
+
+  // Binds an idle client to the call that adopts it. Tasks submitted afterwards see the new
+  // parameters and events, and run after the reset of a previous call.
+  private void adopt(
+      PeerConnectionParameters peerConnectionParameters, PeerConnectionEvents events) {
+    executor.execute(() -> {
+      this.peerConnectionParameters = peerConnectionParameters;
+      this.dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
+      this.events = events;
+      isError = false;
+      preferIsac = peerConnectionParameters.audioCodec != null
+          && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+      if (factory == null) {
+        // Pre-warming failed, try again for this call.
+        createPeerConnectionFactoryInternal(factoryOptions);
+      } else if (peerConnectionParameters.tracing) {
+        startInternalTracingCapture();
+      }
+    });
+  }
+
   public void createPeerConnection(final VideoSink localRender,
       final VideoSink remoteSinks, final VideoCapturer videoCapturer,
       final SignalingParameters signalingParameters) {
@@ -373,11 +571,11 @@ public class PeerConnectionClient {
       Log.e(TAG, "Creating peer connection without initializing factory.");
       return;
     }
-    this.localRender = localRender;
-    this.remoteSinks = remoteSinks;
-    this.videoCapturer = videoCapturer;
-    this.signalingParameters = signalingParameters;
     executor.execute(() -> {
+      this.localRender = localRender;
+      this.remoteSinks = remoteSinks;
+      this.videoCapturer = videoCapturer;
+      this.signalingParameters = signalingParameters;
       try {
         createMediaConstraintsInternal();
         createPeerConnectionInternal();
@@ -389,21 +587,142 @@ public class PeerConnectionClient {
     });
   }
 
+  /**
+   * Creates a peer connection with an ICE candidate pool so that STUN/TURN candidates are
+   * gathered while the room join request is in flight. createPeerConnection() takes it over
+   * and applies the ICE servers of the room.
+   */
+  public void createStandbyPeerConnection() {
+    executor.execute(() -> {
+      if (factory == null || isError || peerConnection != null || standbyPeerConnection != null) {
+        return;
+      }
+      Log.d(TAG, "Create standby peer connection with " + lastIceServers.size() + " ICE servers.");
+      standbyPeerConnection =
+          createObservedPeerConnection(createRtcConfiguration(lastIceServers));
+    });
+  }
+
+  /**
+   * Adds ICE servers to the call. Servers added before the peer connection is created are
+   * used when it is created, afterwards they are applied with setConfiguration().
+   */
+  public void addIceServers(final List<PeerConnection.IceServer> iceServers) {
+    executor.execute(() -> {
+      addedIceServers.addAll(iceServers);
+      if (peerConnection == null || signalingParameters == null || isError) {
+        return;
+      }
+      Log.d(TAG, "Add " + iceServers.size() + " ICE servers to the peer connection.");
+      List<PeerConnection.IceServer> allIceServers = getIceServers();
+      lastIceServers = allIceServers;
+      if (!peerConnection.setConfiguration(createRtcConfiguration(allIceServers))) {
+        Log.e(TAG, "Failed to add ICE servers to the peer connection.");
+        return;
+      }
+      if (heldDescription != null) {
+        Log.d(TAG, "TURN servers arrived, creating the held session description.");
+        runHeldDescription();
+      } else if (peerConnection.getLocalDescription() != null && !iceConnected) {
+        // The running ICE session does not gather candidates of servers added afterwards.
+        if (!isInitiator) {
+          Log.w(TAG, "TURN servers arrived after the answer, only the caller restarts ICE.");
+        } else if (peerConnection.signalingState() == PeerConnection.SignalingState.STABLE) {
+          restartIce();
+        } else {
+          iceRestartPending = true;
+        }
+      }
+    });
+  }
+
+  // Delays creating the first offer or answer while the TURN servers are still being fetched,
+  // so that its ICE session gathers relay candidates. |create| runs once they arrive or after
+  // TURN_WAIT_TIMEOUT_MS.
+  private void holdDescription(final Runnable create) {
+    Log.d(TAG, "Waiting up to " + TURN_WAIT_TIMEOUT_MS + " ms for TURN servers.");
+    heldDescription = create;
+    turnWaitTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        executor.execute(() -> {
+          if (heldDescription == create) {
+            Log.w(TAG, "TURN servers did not arrive in time.");
+            runHeldDescription();
+          }
+        });
+      }
+    }, TURN_WAIT_TIMEOUT_MS);
+  }
+
+  private void runHeldDescription() {
+    final Runnable create = heldDescription;
+    heldDescription = null;
+    if (create != null && peerConnection != null && !isError) {
+      create.run();
+    }
+  }
+
+  // True while the TURN servers of the call are being fetched and no description was created.
+  private boolean isWaitingForTurnServers() {
+    return signalingParameters != null && signalingParameters.turnServersPending
+        && addedIceServers.isEmpty() && peerConnection.getLocalDescription() == null;
+  }
+
+  // Renegotiates with a new ICE session that uses all ICE servers added so far.
+  private void restartIce() {
+    Log.d(TAG, "Restarting ICE with the added ICE servers.");
+    final MediaConstraints constraints = new MediaConstraints();
+    constraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+    constraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+    localSdp = null;
+    peerConnection.createOffer(sdpObserver, constraints);
+  }
+
+  // Creates a peer connection reporting to an observer of its own. Peer connections of ended
+  // calls are disposed on the teardown thread while the client may already run the next call,
+  // so the observers drop the callbacks of any peer connection that is no longer the client's.
+  @Nullable
+  private PeerConnection createObservedPeerConnection(PeerConnection.RTCConfiguration rtcConfig) {
+    final PCObserver observer = new PCObserver();
+    final PeerConnection connection = factory.createPeerConnection(rtcConfig, observer);
+    observer.connection = connection;
+    return connection;
+  }
+
+  // ICE servers of the signaling parameters and the ones added later.
+  private List<PeerConnection.IceServer> getIceServers() {
+    List<PeerConnection.IceServer> iceServers = new ArrayList<>(signalingParameters.iceServers);
+    iceServers.addAll(addedIceServers);
+    return iceServers;
+  }
+
+  /**
+   * Ends the call and disposes everything including the factory.
+   */
   public void close() {
     executor.execute(this ::closeInternal);
   }
 
+  /**
+   * Ends the call and keeps the factory, the audio/video sources and the SurfaceTextureHelper
+   * for the next call, which gets this client from obtain(). The client is disposed when it is
+   * not adopted within the pool idle timeout. A client that had an error is closed instead.
+   */
+  public void release() {
+    executor.execute(this ::releaseInternal);
+  }
+
   private boolean isVideoCallEnabled() {
     return peerConnectionParameters.videoCallEnabled && videoCapturer != null;
   }
 
   private void createPeerConnectionFactoryInternal(PeerConnectionFactory.Options options) {
     isError = false;
+    CallSetupTracer.beginPhase(CallSetupTracer.FACTORY_CREATE);
 
     if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
+      startInternalTracingCapture();
     }
 
     // Check if ISAC is used by default.
@@ -455,6 +774,13 @@ public class PeerConnectionClient {
                   .setVideoDecoderFactory(decoderFactory)
                   .createPeerConnectionFactory();
     Log.d(TAG, "Peer connection factory created.");
+    CallSetupTracer.endPhase(CallSetupTracer.FACTORY_CREATE);
+  }
+
+  private static void startInternalTracingCapture() {
+    PeerConnectionFactory.startInternalTracingCapture(
+        Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+        + "webrtc-trace.txt");
   }
 
   AudioDeviceModule createLegacyAudioDevice() {
@@ -638,6 +964,7 @@ public class PeerConnectionClient {
       return;
     }
     Log.d(TAG, "Create peer connection.");
+    CallSetupTracer.beginPhase(CallSetupTracer.PEER_CONNECTION_CREATE);
 
     queuedRemoteCandidates = new ArrayList<>();
 
@@ -646,21 +973,22 @@ public class PeerConnectionClient {
           rootEglBase.getEglBaseContext(), rootEglBase.getEglBaseContext());
     }
 
-    PeerConnection.RTCConfiguration rtcConfig =
-        new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-    // TCP candidates are only useful when connecting to a server that supports
-    // ICE-TCP.
-    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-    // Use ECDSA encryption.
-    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
-    // Enable DTLS for normal calls and disable for loopback calls.
-    rtcConfig.enableDtlsSrtp = !peerConnectionParameters.loopback;
-    rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
-
-    peerConnection = factory.createPeerConnection(rtcConfig, pcObserver);
+    List<PeerConnection.IceServer> iceServers = getIceServers();
+    PeerConnection.RTCConfiguration rtcConfig = createRtcConfiguration(iceServers);
+    lastIceServers = iceServers;
+    if (standbyPeerConnection != null && standbyPeerConnection.setConfiguration(rtcConfig)) {
+      // Pooled candidates gathered with other ICE servers are regathered by setConfiguration().
+      Log.d(TAG, "Use standby peer connection.");
+      peerConnection = standbyPeerConnection;
+    } else {
+      if (standbyPeerConnection != null) {
+        Log.w(TAG, "Failed to configure standby peer connection.");
+        standbyPeerConnection.dispose();
+      }
+      peerConnection = createObservedPeerConnection(rtcConfig);
+    }
+    standbyPeerConnection = null;
+    sdpObserver = new SDPObserver(peerConnection);
 
     if (dataChannelEnabled) {
       DataChannel.Init init = new DataChannel.Init();
@@ -713,6 +1041,26 @@ public class PeerConnectionClient {
       }
     }
     Log.d(TAG, "Peer connection created.");
+    CallSetupTracer.endPhase(CallSetupTracer.PEER_CONNECTION_CREATE);
+  }
+
+  private PeerConnection.RTCConfiguration createRtcConfiguration(
+      List<PeerConnection.IceServer> iceServers) {
+    PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+    // TCP candidates are only useful when connecting to a server that supports
+    // ICE-TCP.
+    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+    // Use ECDSA encryption.
+    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+    // Enable DTLS for normal calls and disable for loopback calls.
+    rtcConfig.enableDtlsSrtp = !peerConnectionParameters.loopback;
+    rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+    // Start gathering candidates before the offer or answer is created.
+    rtcConfig.iceCandidatePoolSize = ICE_CANDIDATE_POOL_SIZE;
+    return rtcConfig;
   }
 
   private File createRtcEventLogOutputFile() {
@@ -736,29 +1084,63 @@ public class PeerConnectionClient {
   }
 
   private void closeInternal() {
-    if (factory != null && peerConnectionParameters.aecDump) {
-      factory.stopAecDump();
-    }
-    Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
-    if (dataChannel != null) {
-      dataChannel.dispose();
-      dataChannel = null;
-    }
-    if (rtcEventLog != null) {
-      // org.appspot.apprtc.RtcEventLog should stop before the peer connection is disposed.
-      rtcEventLog.stop();
-      rtcEventLog = null;
-    }
-    if (peerConnection != null) {
-      peerConnection.dispose();
-      peerConnection = null;
-    }
+    endCallInternal();
+    // The sources and the factory must outlive the peer connection and the tracks.
+    awaitTeardown();
     Log.d(TAG, "Closing audio source.");
     if (audioSource != null) {
       audioSource.dispose();
       audioSource = null;
     }
+    Log.d(TAG, "Closing video source.");
+    if (videoSource != null) {
+      videoSource.dispose();
+      videoSource = null;
+    }
+    if (surfaceTextureHelper != null) {
+      surfaceTextureHelper.dispose();
+      surfaceTextureHelper = null;
+    }
+    saveRecordedAudioToFile = null;
+    Log.d(TAG, "Closing peer connection factory.");
+    if (factory != null) {
+      factory.dispose();
+      factory = null;
+    }
+    rootEglBase.release();
+    Log.d(TAG, "Closing peer connection done.");
+    if (events != null) {
+      events.onPeerConnectionClosed();
+      events = null;
+    }
+    PeerConnectionFactory.stopInternalTracingCapture();
+    PeerConnectionFactory.shutdownInternalTracer();
+  }
+
+  private void releaseInternal() {
+    endCallInternal();
+    if (isError) {
+      // The factory may be unusable, do not hand it to the next call.
+      closeInternal();
+      return;
+    }
+    Log.d(TAG, "Peer connection released for the next call.");
+    if (events != null) {
+      events.onPeerConnectionClosed();
+      events = null;
+    }
+    PeerConnectionFactory.stopInternalTracingCapture();
+    // Pooled only now, so that obtain() cannot adopt the client before the call has ended
+    // and its error state is known.
+    offerToPool(this, getFactoryKey(peerConnectionParameters, factoryOptions));
+  }
+
+  // Disposes the per call objects and resets the per call state.
+  private void endCallInternal() {
+    // Local media stops first, the rest of the call is disposed on the teardown thread.
+    if (localAudioTrack != null) {
+      localAudioTrack.setEnabled(false);
+    }
     Log.d(TAG, "Stopping capture.");
     if (videoCapturer != null) {
       try {
@@ -770,32 +1152,77 @@ public class PeerConnectionClient {
       videoCapturer.dispose();
       videoCapturer = null;
     }
-    Log.d(TAG, "Closing video source.");
-    if (videoSource != null) {
-      videoSource.dispose();
-      videoSource = null;
-    }
-	if (surfaceTextureHelper != null) {
-      surfaceTextureHelper.dispose();
-      surfaceTextureHelper = null;
+    if (factory != null && peerConnectionParameters.aecDump) {
+      factory.stopAecDump();
     }
+    Log.d(TAG, "Closing peer connection.");
+    cancelStatsTimer();
+    final DataChannel endedDataChannel = dataChannel;
+    final RtcEventLog endedRtcEventLog = rtcEventLog;
+    final PeerConnection endedPeerConnection = peerConnection;
+    final PeerConnection endedStandbyPeerConnection = standbyPeerConnection;
+    final AudioTrack endedAudioTrack = localAudioTrack;
+    final VideoTrack endedVideoTrack = localVideoTrack;
+    dataChannel = null;
+    rtcEventLog = null;
+    peerConnection = null;
+    standbyPeerConnection = null;
+    sdpObserver = null;
+    localAudioTrack = null;
+    localVideoTrack = null;
+    teardownExecutor.execute(() -> {
+      final long startMs = SystemClock.elapsedRealtime();
+      if (endedDataChannel != null) {
+        endedDataChannel.dispose();
+      }
+      if (endedRtcEventLog != null) {
+        // org.appspot.apprtc.RtcEventLog should stop before the peer connection is disposed.
+        endedRtcEventLog.stop();
+      }
+      if (endedPeerConnection != null) {
+        endedPeerConnection.dispose();
+      }
+      if (endedStandbyPeerConnection != null) {
+        endedStandbyPeerConnection.dispose();
+      }
+      // The tracks are not reused, the sources they are attached to are.
+      if (endedAudioTrack != null) {
+        endedAudioTrack.dispose();
+      }
+      if (endedVideoTrack != null) {
+        endedVideoTrack.dispose();
+      }
+      Log.d(TAG, "Peer connection disposed in " + (SystemClock.elapsedRealtime() - startMs)
+              + " ms.");
+    });
+    remoteVideoTrack = null;
+    localVideoSender = null;
     if (saveRecordedAudioToFile != null) {
       Log.d(TAG, "Closing audio file for recorded input audio.");
       saveRecordedAudioToFile.stop();
-      saveRecordedAudioToFile = null;
     }
     localRender = null;
-	remoteSinks = null;
-    Log.d(TAG, "Closing peer connection factory.");
-    if (factory != null) {
-      factory.dispose();
-      factory = null;
+    remoteSinks = null;
+    signalingParameters = null;
+    addedIceServers.clear();
+    queuedRemoteCandidates = null;
+    localSdp = null;
+    heldDescription = null;
+    iceRestartPending = false;
+    iceConnected = false;
+    isInitiator = false;
+    videoCapturerStopped = false;
+    renderVideo = true;
+    enableAudio = true;
+  }
+
+  // Waits for the teardown thread to dispose the ended calls.
+  private static void awaitTeardown() {
+    try {
+      teardownExecutor.submit(() -> {}).get();
+    } catch (InterruptedException | ExecutionException e) {
+      Log.e(TAG, "Peer connection teardown failed: " + e);
     }
-    rootEglBase.release();
-    Log.d(TAG, "Closing peer connection done.");
-    events.onPeerConnectionClosed();
-    PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
   }
 
   public boolean isHDVideo() {
@@ -807,10 +1234,16 @@ public class PeerConnectionClient {
     if (peerConnection == null || isError) {
       return;
     }
+    final PeerConnection connection = peerConnection;
     boolean success = peerConnection.getStats(new StatsObserver() {
       @Override
       public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
+        executor.execute(() -> {
+          // The call may have ended while the stats were collected.
+          if (connection == peerConnection && events != null) {
+            events.onPeerConnectionStatsReady(reports);
+          }
+        });
       }
     }, null);
     if (!success) {
@@ -818,9 +1251,12 @@ public class PeerConnectionClient {
     }
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs) {
+  public synchronized void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
       try {
+        if (statsTimer == null) {
+          statsTimer = new Timer();
+        }
         statsTimer.schedule(new TimerTask() {
           @Override
           public void run() {
@@ -831,7 +1267,14 @@ public class PeerConnectionClient {
         Log.e(TAG, "Can not schedule statistics timer", e);
       }
     } else {
+      cancelStatsTimer();
+    }
+  }
+
+  private synchronized void cancelStatsTimer() {
+    if (statsTimer != null) {
       statsTimer.cancel();
+      statsTimer = null;
     }
   }
 
@@ -859,26 +1302,49 @@ public class PeerConnectionClient {
   public void createOffer() {
     executor.execute(() -> {
       if (peerConnection != null && !isError) {
-        Log.d(TAG, "PC Create OFFER");
         isInitiator = true;
-        peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+        if (isWaitingForTurnServers()) {
+          holdDescription(this ::createOfferInternal);
+        } else {
+          createOfferInternal();
+        }
       }
     });
   }
 
+  private void createOfferInternal() {
+    Log.d(TAG, "PC Create OFFER");
+    CallSetupTracer.beginPhase(CallSetupTracer.CREATE_OFFER);
+    peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+  }
+
   public void createAnswer() {
     executor.execute(() -> {
       if (peerConnection != null && !isError) {
-        Log.d(TAG, "PC create ANSWER");
         isInitiator = false;
-        peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+        if (isWaitingForTurnServers()) {
+          holdDescription(this ::createAnswerInternal);
+        } else {
+          createAnswerInternal();
+        }
       }
     });
   }
 
+  private void createAnswerInternal() {
+    Log.d(TAG, "PC create ANSWER");
+    if (peerConnection.getLocalDescription() != null) {
+      // Answer to an ICE restart offer.
+      localSdp = null;
+    }
+    CallSetupTracer.beginPhase(CallSetupTracer.CREATE_ANSWER);
+    peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+  }
+
   public void addRemoteIceCandidate(final IceCandidate candidate) {
     executor.execute(() -> {
       if (peerConnection != null && !isError) {
+        CallSetupTracer.instant(CallSetupTracer.FIRST_REMOTE_CANDIDATE);
         if (queuedRemoteCandidates != null) {
           queuedRemoteCandidates.add(candidate);
         } else {
@@ -919,6 +1385,7 @@ public class PeerConnectionClient {
       }
       Log.d(TAG, "Set remote SDP.");
       SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
+      CallSetupTracer.beginPhase(CallSetupTracer.SET_REMOTE_DESCRIPTION);
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
     });
   }
@@ -978,7 +1445,9 @@ public class PeerConnectionClient {
     Log.e(TAG, "Peerconnection error: " + errorMessage);
     executor.execute(() -> {
       if (!isError) {
-        events.onPeerConnectionError(errorMessage);
+        if (events != null) {
+          events.onPeerConnectionError(errorMessage);
+        }
         isError = true;
       }
     });
@@ -986,7 +1455,15 @@ public class PeerConnectionClient {
 
   @Nullable
   private AudioTrack createAudioTrack() {
-    audioSource = factory.createAudioSource(audioConstraints);
+    if (audioSource != null
+        && audioSourceNoAudioProcessing != peerConnectionParameters.noAudioProcessing) {
+      audioSource.dispose();
+      audioSource = null;
+    }
+    if (audioSource == null) {
+      audioSource = factory.createAudioSource(audioConstraints);
+      audioSourceNoAudioProcessing = peerConnectionParameters.noAudioProcessing;
+    }
     localAudioTrack = factory.createAudioTrack(AUDIO_TRACK_ID, audioSource);
     localAudioTrack.setEnabled(enableAudio);
     return localAudioTrack;
@@ -996,11 +1473,25 @@ public class PeerConnectionClient {
   private VideoTrack createVideoTrack(VideoCapturer capturer) {
 //    videoSource = factory.createVideoSource(capturer);
 //    capturer.startCapture(videoWidth, videoHeight, videoFps);
-  surfaceTextureHelper =
-    SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext());
-   videoSource = factory.createVideoSource(capturer.isScreencast());
-   capturer.initialize(surfaceTextureHelper, appContext, videoSource.getCapturerObserver());
-   capturer.startCapture(videoWidth, videoHeight, videoFps);
+    // The SurfaceTextureHelper and the video source are kept across calls.
+    if (surfaceTextureHelper == null) {
+      surfaceTextureHelper =
+          SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext());
+    }
+    if (videoSource != null && videoSourceIsScreencast != capturer.isScreencast()) {
+      videoSource.dispose();
+      videoSource = null;
+    }
+    if (videoSource == null) {
+      videoSource = factory.createVideoSource(capturer.isScreencast());
+      videoSourceIsScreencast = capturer.isScreencast();
+    } else {
+      // Drop an output format requested by changeCaptureFormat() during a previous call.
+      videoSource.adaptOutputFormat(videoWidth, videoHeight, videoFps);
+    }
+    capturer.initialize(surfaceTextureHelper, appContext, videoSource.getCapturerObserver());
+    CallSetupTracer.beginPhase(CallSetupTracer.CAPTURER_START);
+    capturer.startCapture(videoWidth, videoHeight, videoFps);
 
     localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
     localVideoTrack.setEnabled(renderVideo);
@@ -1253,15 +1744,37 @@ public class PeerConnectionClient {
   }
 
   // Implementation detail: observe ICE & stream changes and react accordingly.
+  // Each peer connection has an observer of its own, see createObservedPeerConnection().
   private class PCObserver implements PeerConnection.Observer {
+    // Set on the executor thread right after the peer connection is created, so it is set
+    // before any callback posted to the executor runs.
+    @Nullable
+    PeerConnection connection;
+
+    // True if the observed peer connection is still used by the client. Called on the
+    // executor thread.
+    private boolean isCurrent() {
+      return connection != null
+          && (connection == peerConnection || connection == standbyPeerConnection);
+    }
+
     @Override
     public void onIceCandidate(final IceCandidate candidate) {
-      executor.execute(() -> events.onIceCandidate(candidate));
+      executor.execute(() -> {
+        if (isCurrent() && events != null) {
+          CallSetupTracer.instant(CallSetupTracer.FIRST_LOCAL_CANDIDATE);
+          events.onIceCandidate(candidate);
+        }
+      });
     }
 
     @Override
     public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-      executor.execute(() -> events.onIceCandidatesRemoved(candidates));
+      executor.execute(() -> {
+        if (isCurrent() && events != null) {
+          events.onIceCandidatesRemoved(candidates);
+        }
+      });
     }
 
     @Override
@@ -1272,11 +1785,26 @@ public class PeerConnectionClient {
     @Override
     public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
       executor.execute(() -> {
+        if (!isCurrent()) {
+          Log.d(TAG, "IceConnectionState of an ended call: " + newState);
+          return;
+        }
         Log.d(TAG, "IceConnectionState: " + newState);
-        if (newState == IceConnectionState.CONNECTED) {
-          events.onIceConnected();
+        if (newState == IceConnectionState.CHECKING) {
+          CallSetupTracer.instant(CallSetupTracer.ICE_CHECKING);
+          CallSetupTracer.beginPhase(CallSetupTracer.ICE_CONNECT);
+        } else if (newState == IceConnectionState.CONNECTED) {
+          iceConnected = true;
+          CallSetupTracer.endPhase(CallSetupTracer.ICE_CONNECT);
+          CallSetupTracer.instant(CallSetupTracer.ICE_CONNECTED);
+          if (events != null) {
+            events.onIceConnected();
+          }
         } else if (newState == IceConnectionState.DISCONNECTED) {
-          events.onIceDisconnected();
+          iceConnected = false;
+          if (events != null) {
+            events.onIceDisconnected();
+          }
         } else if (newState == IceConnectionState.FAILED) {
           reportError("ICE connection failed.");
         }
@@ -1344,63 +1872,90 @@ public class PeerConnectionClient {
 
   // Implementation detail: handle offer creation/signaling and answer setting,
   // as well as adding remote ICE candidates once the answer SDP is set.
+  // Bound to one peer connection like PCObserver, results of an ended call are dropped.
   private class SDPObserver implements SdpObserver {
+    private final PeerConnection connection;
+
+    SDPObserver(PeerConnection connection) {
+      this.connection = connection;
+    }
+
+    // True if the observed peer connection is still the one of the call. Called on the
+    // executor thread.
+    private boolean isCurrent() {
+      return connection != null && connection == peerConnection;
+    }
+
     @Override
     public void onCreateSuccess(final SessionDescription origSdp) {
-      if (localSdp != null) {
-        reportError("Multiple SDP create.");
-        return;
-      }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
-      localSdp = sdp;
       executor.execute(() -> {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "Set local SDP from " + sdp.type);
-          peerConnection.setLocalDescription(sdpObserver, sdp);
+        if (!isCurrent() || isError) {
+          return;
+        }
+        if (localSdp != null) {
+          reportError("Multiple SDP create.");
+          return;
+        }
+        CallSetupTracer.endPhase(origSdp.type == SessionDescription.Type.OFFER
+            ? CallSetupTracer.CREATE_OFFER : CallSetupTracer.CREATE_ANSWER);
+        String sdpDescription = origSdp.description;
+        if (preferIsac) {
+          sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
         }
+        if (isVideoCallEnabled()) {
+          sdpDescription =
+              preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
+        }
+        final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
+        localSdp = sdp;
+        Log.d(TAG, "Set local SDP from " + sdp.type);
+        CallSetupTracer.beginPhase(CallSetupTracer.SET_LOCAL_DESCRIPTION);
+        peerConnection.setLocalDescription(this, sdp);
       });
     }
 
     @Override
     public void onSetSuccess() {
       executor.execute(() -> {
-        if (peerConnection == null || isError) {
+        if (!isCurrent() || isError || events == null) {
           return;
         }
         if (isInitiator) {
           // For offering peer connection we first create offer and set
           // local SDP, then after receiving answer set remote SDP.
-          if (peerConnection.getRemoteDescription() == null) {
+          if (peerConnection.signalingState() == PeerConnection.SignalingState.HAVE_LOCAL_OFFER) {
             // We've just set our local SDP so time to send it.
             Log.d(TAG, "Local SDP set successfully");
+            CallSetupTracer.endPhase(CallSetupTracer.SET_LOCAL_DESCRIPTION);
             events.onLocalDescription(localSdp);
           } else {
             // We've just set remote description, so drain remote
             // and send local ICE candidates.
             Log.d(TAG, "Remote SDP set successfully");
+            CallSetupTracer.endPhase(CallSetupTracer.SET_REMOTE_DESCRIPTION);
             drainCandidates();
+            if (iceRestartPending) {
+              iceRestartPending = false;
+              if (!iceConnected) {
+                restartIce();
+              }
+            }
           }
         } else {
           // For answering peer connection we set remote SDP and then
           // create answer and set local SDP.
-          if (peerConnection.getLocalDescription() != null) {
+          if (peerConnection.signalingState() == PeerConnection.SignalingState.STABLE) {
             // We've just set our local SDP so time to send it, drain
             // remote and send local ICE candidates.
             Log.d(TAG, "Local SDP set successfully");
+            CallSetupTracer.endPhase(CallSetupTracer.SET_LOCAL_DESCRIPTION);
             events.onLocalDescription(localSdp);
             drainCandidates();
           } else {
             // We've just set remote SDP - do nothing for now -
             // answer will be created soon.
             Log.d(TAG, "Remote SDP set successfully");
+            CallSetupTracer.endPhase(CallSetupTracer.SET_REMOTE_DESCRIPTION);
           }
         }
       });
@@ -1408,12 +1963,20 @@ public class PeerConnectionClient {
 
     @Override
     public void onCreateFailure(final String error) {
-      reportError("createSDP error: " + error);
+      executor.execute(() -> {
+        if (isCurrent()) {
+          reportError("createSDP error: " + error);
+        }
+      });
     }
 
     @Override
     public void onSetFailure(final String error) {
-      reportError("setSDP error: " + error);
+      executor.execute(() -> {
+        if (isCurrent()) {
+          reportError("setSDP error: " + error);
+        }
+      });
     }
   }
 }
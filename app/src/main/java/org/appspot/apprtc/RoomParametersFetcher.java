@@ -12,7 +12,8 @@ import android.util.Log;
 
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
-import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.RoomResponseParser.RoomResponse;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpStreamEvents;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -23,10 +24,14 @@ import org.webrtc.SessionDescription;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -35,9 +40,12 @@ import java.util.Scanner;
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
   private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  private static final Pattern LIFETIME_PATTERN = Pattern.compile("^(\\d+(\\.\\d*)?)s$");
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
+  @Nullable
+  private TurnServerRequest turnServerRequest;
 
   /**
    * Room parameters fetcher callbacks.
@@ -53,6 +61,12 @@ public class RoomParametersFetcher {
      * Callback for room parameters extraction error.
      */
     void onSignalingParametersError(final String description);
+
+    /**
+     * Callback fired once TURN servers requested from the room's ice_server_url
+     * are received, after onSignalingParametersReady.
+     */
+    void onTurnServersReady(final List<PeerConnection.IceServer> turnServers);
   }
 
   public RoomParametersFetcher(
@@ -64,105 +78,198 @@ public class RoomParametersFetcher {
 
   public void makeRequest() {
     Log.d(TAG, "Connecting to room: " + roomUrl);
+    // Request TURN servers in parallel with the join if the room server is known and
+    // the cached TURN servers are missing or should be refreshed.
+    final IceServerCache cache = IceServerCache.getInstance();
+    final String iceServerUrl = cache.getIceServerUrl(getRoomServerKey(roomUrl));
+    if (iceServerUrl != null && cache.needsRefresh(iceServerUrl)) {
+      turnServerRequest = new TurnServerRequest(iceServerUrl);
+      turnServerRequest.start();
+    }
+    CallSetupTracer.beginPhase(CallSetupTracer.ROOM_JOIN);
     AsyncHttpURLConnection httpConnection =
-        new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
+        new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpStreamEvents() {
           @Override
           public void onHttpError(String errorMessage) {
             Log.e(TAG, "Room connection error: " + errorMessage);
+            CallSetupTracer.endPhase(CallSetupTracer.ROOM_JOIN);
             events.onSignalingParametersError(errorMessage);
           }
 
           @Override
-          public void onHttpComplete(String response) {
-            roomHttpResponseParse(response);
+          public void onHttpResponse(InputStream response) {
+            final RoomResponse roomResponse;
+            try {
+              roomResponse = RoomResponseParser.parse(response);
+            } catch (IOException e) {
+              CallSetupTracer.endPhase(CallSetupTracer.ROOM_JOIN);
+              events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
+              return;
+            }
+            CallSetupTracer.endPhase(CallSetupTracer.ROOM_JOIN);
+            roomResponseReady(roomResponse);
           }
         });
     httpConnection.send();
   }
 
-  private void roomHttpResponseParse(String response) {
-    Log.d(TAG, "Room response: " + response);
-    try {
-      List<IceCandidate> iceCandidates = null;
-      SessionDescription offerSdp = null;
-      JSONObject roomJson = new JSONObject(response);
-
-      String result = roomJson.getString("result");
-      if (!result.equals("SUCCESS")) {
-        events.onSignalingParametersError("Room response error: " + result);
-        return;
+  private void roomResponseReady(RoomResponse response) {
+    if (!"SUCCESS".equals(response.result)) {
+      events.onSignalingParametersError("Room response error: " + response.result);
+      return;
+    }
+    final boolean initiator = response.initiator;
+    List<IceCandidate> iceCandidates = null;
+    SessionDescription offerSdp = null;
+    if (!initiator) {
+      iceCandidates = response.iceCandidates;
+      offerSdp = response.offerSdp;
+      Log.d(TAG, "GAE->C: " + (offerSdp != null ? "offer, " : "") + iceCandidates.size()
+          + " candidates");
+      for (String message : response.unknownMessages) {
+        Log.e(TAG, "Unknown message: " + message);
       }
-      response = roomJson.getString("params");
-      roomJson = new JSONObject(response);
-      String roomId = roomJson.getString("room_id");
-      String clientId = roomJson.getString("client_id");
-      String wssUrl = roomJson.getString("wss_url");
-      String wssPostUrl = roomJson.getString("wss_post_url");
-      boolean initiator = (roomJson.getBoolean("is_initiator"));
-      if (!initiator) {
-        iceCandidates = new ArrayList<>();
-        String messagesString = roomJson.getString("messages");
-        JSONArray messages = new JSONArray(messagesString);
-        for (int i = 0; i < messages.length(); ++i) {
-          String messageString = messages.getString(i);
-          JSONObject message = new JSONObject(messageString);
-          String messageType = message.getString("type");
-          Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-          if (messageType.equals("offer")) {
-            offerSdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-          } else if (messageType.equals("candidate")) {
-            IceCandidate candidate = new IceCandidate(
-                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-            iceCandidates.add(candidate);
-          } else {
-            Log.e(TAG, "Unknown message: " + messageString);
-          }
+    }
+    Log.d(TAG, "RoomId: " + response.roomId + ". ClientId: " + response.clientId);
+    Log.d(TAG, "Initiator: " + initiator);
+    Log.d(TAG, "WSS url: " + response.wssUrl);
+    Log.d(TAG, "WSS POST url: " + response.wssPostUrl);
+
+    List<PeerConnection.IceServer> iceServers = response.iceServers;
+    boolean isTurnPresent = false;
+    for (PeerConnection.IceServer server : iceServers) {
+      Log.d(TAG, "IceServer: " + server);
+      for (String uri : server.urls) {
+        if (uri.startsWith("turn:")) {
+          isTurnPresent = true;
+          break;
         }
       }
-      Log.d(TAG, "RoomId: " + roomId + ". ClientId: " + clientId);
-      Log.d(TAG, "Initiator: " + initiator);
-      Log.d(TAG, "WSS url: " + wssUrl);
-      Log.d(TAG, "WSS POST url: " + wssPostUrl);
-
-      List<PeerConnection.IceServer> iceServers =
-          iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
-      boolean isTurnPresent = false;
-      for (PeerConnection.IceServer server : iceServers) {
-        Log.d(TAG, "IceServer: " + server);
-        for (String uri : server.urls) {
-          if (uri.startsWith("turn:")) {
-            isTurnPresent = true;
-            break;
-          }
+    }
+    // Use the cached TURN servers if any, refreshing them in the background when needed.
+    // Otherwise request them unless the request sent with the join was for the same URL,
+    // the call starts with the servers from pc_config and the TURN servers are reported
+    // by onTurnServersReady once they arrive.
+    final String iceServerUrl = response.iceServerUrl;
+    boolean reportTurnServers = false;
+    if (!isTurnPresent && iceServerUrl != null && !iceServerUrl.isEmpty()) {
+      final IceServerCache cache = IceServerCache.getInstance();
+      cache.putIceServerUrl(getRoomServerKey(roomUrl), iceServerUrl);
+      final List<PeerConnection.IceServer> cachedServers = cache.getIceServers(iceServerUrl);
+      if (cachedServers != null) {
+        Log.d(TAG, "Using " + cachedServers.size() + " cached TURN servers.");
+        iceServers.addAll(cachedServers);
+      } else {
+        reportTurnServers = true;
+      }
+      if ((cachedServers == null || cache.needsRefresh(iceServerUrl))
+          && (turnServerRequest == null || !turnServerRequest.url.equals(iceServerUrl))) {
+        turnServerRequest = new TurnServerRequest(iceServerUrl);
+        turnServerRequest.start();
+      }
+    }
+
+    final boolean turnServersPending = reportTurnServers && turnServerRequest != null;
+    SignalingParameters params = new SignalingParameters(iceServers, initiator,
+        response.clientId, response.wssUrl, response.wssPostUrl, offerSdp, iceCandidates,
+        !initiator && response.offerAcceptsCompression, turnServersPending);
+    events.onSignalingParametersReady(params);
+    if (turnServersPending) {
+      turnServerRequest.setEvents(events);
+    }
+  }
+
+  // Key of the room server |url| belongs to.
+  static String getRoomServerKey(String url) {
+    try {
+      URL parsed = new URL(url);
+      return parsed.getProtocol() + "://" + parsed.getAuthority();
+    } catch (MalformedURLException e) {
+      return url;
+    }
+  }
+
+  /**
+   * TURN server request running on its own thread. The result is stored in
+   * the IceServerCache and reported once both the response is received and
+   * the events are set.
+   */
+  private class TurnServerRequest implements Runnable {
+    private final String url;
+    @Nullable
+    private RoomParametersFetcherEvents turnEvents;
+    @Nullable
+    private List<PeerConnection.IceServer> turnServers;
+    private boolean done;
+
+    TurnServerRequest(String url) {
+      this.url = url;
+    }
+
+    void start() {
+      new Thread(this, "TurnServerRequest").start();
+    }
+
+    @Override
+    public void run() {
+      List<PeerConnection.IceServer> result = null;
+      try {
+        result = requestTurnServers(url);
+      } catch (IOException e) {
+        Log.e(TAG, "TURN request IO error: " + e.toString());
+      } catch (JSONException e) {
+        Log.e(TAG, "TURN response JSON parsing error: " + e.toString());
+      }
+      synchronized (this) {
+        turnServers = result;
+        done = true;
+      }
+      deliver();
+    }
+
+    void setEvents(RoomParametersFetcherEvents events) {
+      synchronized (this) {
+        turnEvents = events;
+      }
+      deliver();
+    }
+
+    private void deliver() {
+      final RoomParametersFetcherEvents target;
+      final List<PeerConnection.IceServer> servers;
+      synchronized (this) {
+        if (!done || turnEvents == null) {
+          return;
         }
+        target = turnEvents;
+        servers = turnServers;
+        turnEvents = null;
       }
-      // Request TURN servers.
-      if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-        List<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
-        for (PeerConnection.IceServer turnServer : turnServers) {
+      if (servers != null && !servers.isEmpty()) {
+        for (PeerConnection.IceServer turnServer : servers) {
           Log.d(TAG, "TurnServer: " + turnServer);
-          iceServers.add(turnServer);
         }
+        target.onTurnServersReady(servers);
       }
-
-      SignalingParameters params = new SignalingParameters(
-          iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
-      events.onSignalingParametersReady(params);
-    } catch (JSONException e) {
-      events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
-    } catch (IOException e) {
-      events.onSignalingParametersError("Room IO error: " + e.toString());
     }
   }
 
   // Requests & returns a TURN ICE Server based on a request URL.  Must be run
   // off the main thread!
-  private List<PeerConnection.IceServer> requestTurnServers(String url)
+  static List<PeerConnection.IceServer> requestTurnServers(String url)
       throws IOException, JSONException {
-    List<PeerConnection.IceServer> turnServers = new ArrayList<>();
     Log.d(TAG, "Request TURN from: " + url);
+    CallSetupTracer.beginPhase(CallSetupTracer.TURN_FETCH);
+    try {
+      return requestTurnServersInternal(url);
+    } finally {
+      CallSetupTracer.endPhase(CallSetupTracer.TURN_FETCH);
+    }
+  }
+
+  private static List<PeerConnection.IceServer> requestTurnServersInternal(String url)
+      throws IOException, JSONException {
+    List<PeerConnection.IceServer> turnServers = new ArrayList<>();
     HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
     connection.setDoOutput(true);
     connection.setRequestProperty("REFERER", "https://appr.tc");
@@ -174,16 +281,20 @@ public class RoomParametersFetcher {
           + connection.getHeaderField(null));
     }
     InputStream responseStream = connection.getInputStream();
-    String response = drainStream(responseStream);
+    String response = AsyncHttpURLConnection.drainStream(responseStream);
     connection.disconnect();
     Log.d(TAG, "TURN response: " + response);
     JSONObject responseJSON = new JSONObject(response);
+    long lifetimeMs = parseLifetime(responseJSON.optString("lifetimeDuration"));
     JSONArray iceServers = responseJSON.getJSONArray("iceServers");
     for (int i = 0; i < iceServers.length(); ++i) {
       JSONObject server = iceServers.getJSONObject(i);
       JSONArray turnUrls = server.getJSONArray("urls");
       String username = server.has("username") ? server.getString("username") : "";
       String credential = server.has("credential") ? server.getString("credential") : "";
+      if (lifetimeMs < 0) {
+        lifetimeMs = parseUsernameExpiry(username);
+      }
       for (int j = 0; j < turnUrls.length(); j++) {
         String turnUrl = turnUrls.getString(j);
         PeerConnection.IceServer turnServer =
@@ -194,32 +305,32 @@ public class RoomParametersFetcher {
         turnServers.add(turnServer);
       }
     }
+    IceServerCache.getInstance().putIceServers(url, turnServers, lifetimeMs);
     return turnServers;
   }
 
-  // Return the list of ICE servers described by a WebRTCPeerConnection
-  // configuration string.
-  private List<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
-      throws JSONException {
-    JSONObject json = new JSONObject(pcConfig);
-    JSONArray servers = json.getJSONArray("iceServers");
-    List<PeerConnection.IceServer> ret = new ArrayList<>();
-    for (int i = 0; i < servers.length(); ++i) {
-      JSONObject server = servers.getJSONObject(i);
-      String url = server.getString("urls");
-      String credential = server.has("credential") ? server.getString("credential") : "";
-        PeerConnection.IceServer turnServer =
-            PeerConnection.IceServer.builder(url)
-              .setPassword(credential)
-              .createIceServer();
-      ret.add(turnServer);
+  // Returns the lifetime in ms of a duration like "86400s" or -1.
+  private static long parseLifetime(String lifetimeDuration) {
+    Matcher matcher = LIFETIME_PATTERN.matcher(lifetimeDuration);
+    if (!matcher.matches()) {
+      return -1;
     }
-    return ret;
+    return (long) (Double.parseDouble(matcher.group(1)) * 1000);
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  // Returns the remaining lifetime in ms of TURN REST API credentials, whose
+  // username is "<expiry timestamp>:<user>", 0 if they have already expired, or -1.
+  private static long parseUsernameExpiry(String username) {
+    int colon = username.indexOf(':');
+    if (colon <= 0) {
+      return -1;
+    }
+    try {
+      long expiryMs = Long.parseLong(username.substring(0, colon)) * 1000;
+      long lifetimeMs = expiryMs - System.currentTimeMillis();
+      return lifetimeMs > 0 ? lifetimeMs : 0;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 }
@@ -0,0 +1,218 @@
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Prepares the network for a call to a room server while the user is still picking the room:
+ * resolves the room server and WebSocket server hosts, leaves a kept-alive HTTPS connection to
+ * the room server in the HttpURLConnection pool for the join request, and refreshes the cached
+ * TURN servers of the room server in the IceServerCache.
+ *
+ * <p>All work runs on a private handler thread and stops at the next step after
+ * {@link #cancel} is called.
+ */
+public class RoomPrefetcher {
+  private static final String TAG = "RoomPrefetcher";
+  private static final int HTTP_TIMEOUT_MS = 5000;
+  // Prefetches of the same room server within this interval are skipped.
+  private static final long MIN_PREFETCH_INTERVAL_MS = 30 * 1000;
+
+  private final Handler handler;
+  private final Object lock = new Object();
+  // Incremented by every prefetch and cancel, a prefetch stops once it is outdated.
+  private int generation;
+  @Nullable
+  private String lastRoomServerUrl;
+  private long lastPrefetchMs;
+  @Nullable
+  private HttpURLConnection connection;
+
+  public RoomPrefetcher() {
+    handler = HandlerThreadHandler.createHandler(TAG);
+  }
+
+  /**
+   * Starts prefetching for |roomServerUrl|, cancelling the prefetch of any other room server.
+   */
+  public void prefetch(final String roomServerUrl) {
+    final int prefetchGeneration;
+    synchronized (lock) {
+      final long now = SystemClock.elapsedRealtime();
+      if (roomServerUrl.equals(lastRoomServerUrl)
+          && now - lastPrefetchMs < MIN_PREFETCH_INTERVAL_MS) {
+        return;
+      }
+      lastRoomServerUrl = roomServerUrl;
+      lastPrefetchMs = now;
+      prefetchGeneration = ++generation;
+    }
+    handler.removeCallbacksAndMessages(null);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        prefetchInternal(roomServerUrl, prefetchGeneration);
+      }
+    });
+  }
+
+  /**
+   * Cancels the current prefetch. Work already done, e.g. resolved hosts, is kept.
+   */
+  public void cancel() {
+    final HttpURLConnection pendingConnection;
+    synchronized (lock) {
+      generation++;
+      lastRoomServerUrl = null;
+      pendingConnection = connection;
+      connection = null;
+    }
+    handler.removeCallbacksAndMessages(null);
+    if (pendingConnection != null) {
+      // disconnect() may block on closing the socket, so it must not run on the caller's
+      // (usually the UI) thread. The prefetch thread is blocked reading this connection,
+      // so a task posted there would only run after the request finished.
+      new Thread(pendingConnection::disconnect, "RoomPrefetchCancel").start();
+    }
+  }
+
+  public void release() {
+    cancel();
+    handler.getLooper().quit();
+  }
+
+  private boolean isCancelled(int prefetchGeneration) {
+    synchronized (lock) {
+      return prefetchGeneration != generation;
+    }
+  }
+
+  private void prefetchInternal(String roomServerUrl, int prefetchGeneration) {
+    Log.d(TAG, "Prefetch " + roomServerUrl);
+    final long startMs = SystemClock.elapsedRealtime();
+    resolveHost(roomServerUrl);
+    if (isCancelled(prefetchGeneration)) {
+      return;
+    }
+    final IceServerCache cache = IceServerCache.getInstance();
+    final String roomServer = RoomParametersFetcher.getRoomServerKey(roomServerUrl);
+    String iceServerUrl = cache.getIceServerUrl(roomServer);
+    // The room parameters tell the WebSocket server and the TURN server URL. Requesting
+    // them also leaves a kept-alive connection to the room server for the join request.
+    final JSONObject params = requestRoomParameters(roomServerUrl + "/params", prefetchGeneration);
+    if (params != null) {
+      final String wssUrl = params.optString("wss_url");
+      if (!wssUrl.isEmpty()) {
+        resolveHost(wssUrl);
+      }
+      final String wssPostUrl = params.optString("wss_post_url");
+      if (!wssPostUrl.isEmpty()) {
+        resolveHost(wssPostUrl);
+      }
+      final String paramsIceServerUrl = params.optString("ice_server_url");
+      if (!paramsIceServerUrl.isEmpty()) {
+        iceServerUrl = paramsIceServerUrl;
+        cache.putIceServerUrl(roomServer, iceServerUrl);
+      }
+    }
+    if (isCancelled(prefetchGeneration)) {
+      return;
+    }
+    if (iceServerUrl != null && cache.needsRefresh(iceServerUrl)) {
+      try {
+        RoomParametersFetcher.requestTurnServers(iceServerUrl);
+      } catch (IOException e) {
+        Log.e(TAG, "TURN request IO error: " + e.toString());
+      } catch (JSONException e) {
+        Log.e(TAG, "TURN response JSON parsing error: " + e.toString());
+      }
+    }
+    Log.d(TAG, "Prefetch of " + roomServerUrl + " done in "
+        + (SystemClock.elapsedRealtime() - startMs) + " ms");
+  }
+
+  // Resolves the host of |url| so that it is in the DNS cache when the call connects.
+  private static void resolveHost(String url) {
+    final String host;
+    try {
+      host = new URI(url).getHost();
+    } catch (URISyntaxException e) {
+      Log.e(TAG, "Invalid URL: " + url);
+      return;
+    }
+    if (host == null) {
+      return;
+    }
+    try {
+      InetAddress.getAllByName(host);
+    } catch (UnknownHostException e) {
+      Log.w(TAG, "Failed to resolve " + host + ": " + e.getMessage());
+    }
+  }
+
+  @Nullable
+  private JSONObject requestRoomParameters(String url, int prefetchGeneration) {
+    final HttpURLConnection httpConnection;
+    try {
+      httpConnection = (HttpURLConnection) new URL(url).openConnection();
+    } catch (MalformedURLException e) {
+      Log.e(TAG, "Invalid URL: " + url);
+      return null;
+    } catch (IOException e) {
+      Log.e(TAG, "Room parameters request error: " + e.toString());
+      return null;
+    }
+    synchronized (lock) {
+      if (prefetchGeneration != generation) {
+        return null;
+      }
+      connection = httpConnection;
+    }
+    try {
+      httpConnection.setConnectTimeout(HTTP_TIMEOUT_MS);
+      httpConnection.setReadTimeout(HTTP_TIMEOUT_MS);
+      httpConnection.setUseCaches(false);
+      final int responseCode = httpConnection.getResponseCode();
+      if (responseCode != 200) {
+        Log.w(TAG, "Non-200 response to room parameters request: " + responseCode);
+        return null;
+      }
+      // Read the whole response, otherwise the connection is not reused.
+      final InputStream responseStream = httpConnection.getInputStream();
+      final String response = AsyncHttpURLConnection.drainStream(responseStream);
+      responseStream.close();
+      return new JSONObject(response);
+    } catch (IOException e) {
+      Log.e(TAG, "Room parameters request error: " + e.toString());
+      return null;
+    } catch (JSONException e) {
+      Log.e(TAG, "Room parameters JSON parsing error: " + e.toString());
+      return null;
+    } finally {
+      synchronized (lock) {
+        if (connection == httpConnection) {
+          connection = null;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.appspot.apprtc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Streaming parser of the room server's join response.
+ *
+ * <p>The response is decoded in one pass directly into the signaling parameters, without
+ * building JSONObjects or re-serializing the nested params object. The messages and pc_config,
+ * which the room server sends as JSON documents embedded in strings, are read with their own
+ * JsonReader as they are encountered.
+ */
+public class RoomResponseParser {
+  /**
+   * Fields of a join response.
+   */
+  public static class RoomResponse {
+    @Nullable
+    public String result;
+    @Nullable
+    public String roomId;
+    @Nullable
+    public String clientId;
+    @Nullable
+    public String wssUrl;
+    @Nullable
+    public String wssPostUrl;
+    public boolean initiator;
+    @Nullable
+    public SessionDescription offerSdp;
+    public boolean offerAcceptsCompression;
+    public final List<IceCandidate> iceCandidates = new ArrayList<>();
+    public final List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+    @Nullable
+    public String iceServerUrl;
+    // Messages of unknown type.
+    public final List<String> unknownMessages = new ArrayList<>();
+  }
+
+  private RoomResponseParser() {}
+
+  /**
+   * Parses a join response read from |in|, which is not closed.
+   *
+   * @throws IOException if the response is not valid JSON or misses required fields.
+   */
+  public static RoomResponse parse(InputStream in) throws IOException {
+    return parse(new InputStreamReader(in, "UTF-8"));
+  }
+
+  public static RoomResponse parse(Reader in) throws IOException {
+    final RoomResponse response = new RoomResponse();
+    final JsonReader reader = new JsonReader(in);
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (name.equals("result")) {
+          response.result = reader.nextString();
+        } else if (name.equals("params")) {
+          if (reader.peek() == JsonToken.STRING) {
+            final JsonReader paramsReader = new JsonReader(new StringReader(reader.nextString()));
+            readParams(paramsReader, response);
+            paramsReader.close();
+          } else {
+            readParams(reader, response);
+          }
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException | NumberFormatException e) {
+      // Thrown by JsonReader for values of unexpected type.
+      throw new IOException("Unexpected room response: " + e.getMessage());
+    }
+    if ("SUCCESS".equals(response.result)
+        && (response.roomId == null || response.clientId == null || response.wssUrl == null
+               || response.wssPostUrl == null)) {
+      throw new IOException("Missing room parameters");
+    }
+    return response;
+  }
+
+  private static void readParams(JsonReader reader, RoomResponse response) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (name.equals("room_id")) {
+        response.roomId = reader.nextString();
+      } else if (name.equals("client_id")) {
+        response.clientId = reader.nextString();
+      } else if (name.equals("wss_url")) {
+        response.wssUrl = reader.nextString();
+      } else if (name.equals("wss_post_url")) {
+        response.wssPostUrl = reader.nextString();
+      } else if (name.equals("is_initiator")) {
+        response.initiator = readBoolean(reader);
+      } else if (name.equals("messages")) {
+        readMessages(reader, response);
+      } else if (name.equals("pc_config")) {
+        readPcConfig(reader, response);
+      } else if (name.equals("ice_server_url") && reader.peek() == JsonToken.STRING) {
+        response.iceServerUrl = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  // The room server sends booleans as strings.
+  private static boolean readBoolean(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.BOOLEAN) {
+      return reader.nextBoolean();
+    }
+    return Boolean.parseBoolean(reader.nextString());
+  }
+
+  private static void readMessages(JsonReader reader, RoomResponse response) throws IOException {
+    if (reader.peek() == JsonToken.STRING) {
+      final JsonReader messagesReader = new JsonReader(new StringReader(reader.nextString()));
+      readMessages(messagesReader, response);
+      messagesReader.close();
+      return;
+    }
+    reader.beginArray();
+    while (reader.hasNext()) {
+      if (reader.peek() == JsonToken.STRING) {
+        final String message = reader.nextString();
+        final JsonReader messageReader = new JsonReader(new StringReader(message));
+        if (!readMessage(messageReader, response)) {
+          response.unknownMessages.add(message);
+        }
+        messageReader.close();
+      } else if (!readMessage(reader, response)) {
+        response.unknownMessages.add("?");
+      }
+    }
+    reader.endArray();
+  }
+
+  // Returns false for messages which are neither offers nor candidates.
+  private static boolean readMessage(JsonReader reader, RoomResponse response)
+      throws IOException {
+    final SignalingCodec.Message message = SignalingCodec.readMessage(reader);
+    if (message == null) {
+      return false;
+    }
+    if (message.type == SignalingCodec.Type.OFFER) {
+      response.offerSdp = message.sdp;
+      response.offerAcceptsCompression = message.acceptsCompression;
+      return true;
+    } else if (message.type == SignalingCodec.Type.CANDIDATE) {
+      response.iceCandidates.add(message.candidate);
+      return true;
+    }
+    return false;
+  }
+
+  private static void readPcConfig(JsonReader reader, RoomResponse response) throws IOException {
+    if (reader.peek() == JsonToken.STRING) {
+      final JsonReader configReader = new JsonReader(new StringReader(reader.nextString()));
+      readPcConfig(configReader, response);
+      configReader.close();
+      return;
+    }
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("iceServers")) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          readIceServer(reader, response.iceServers);
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private static void readIceServer(JsonReader reader, List<PeerConnection.IceServer> iceServers)
+      throws IOException {
+    final List<String> urls = new ArrayList<>();
+    String username = "";
+    String credential = "";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (name.equals("urls") || name.equals("url")) {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            urls.add(reader.nextString());
+          }
+          reader.endArray();
+        } else {
+          urls.add(reader.nextString());
+        }
+      } else if (name.equals("username")) {
+        username = reader.nextString();
+      } else if (name.equals("credential")) {
+        credential = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!urls.isEmpty()) {
+      iceServers.add(PeerConnection.IceServer.builder(urls)
+                         .setUsername(username)
+                         .setPassword(credential)
+                         .createIceServer());
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.appspot.apprtc;
+
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses session descriptions with zlib deflate and a preset dictionary of common SDP
+ * lines, and encodes them in base64 so that they can be sent in text signaling messages.
+ *
+ * <p>Both peers must use the same dictionary, so any change of it needs a new
+ * {@link #NAME}.
+ */
+public class SdpCompressor {
+  /**
+   * Name of the compression advertised to the remote peer.
+   */
+  public static final String NAME = "deflate-sdp1";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Limit of the decompressed size, session descriptions are far smaller.
+  private static final int MAX_SDP_SIZE = 256 * 1024;
+  // Deflate finds matches in the dictionary backwards from its end, so the most frequent
+  // strings come last.
+  private static final byte[] DICTIONARY = ("a=rtpmap:102 ISAC/32000\r\n"
+      + "a=rtpmap:9 G722/8000\r\n"
+      + "a=rtpmap:0 PCMU/8000\r\n"
+      + "a=rtpmap:8 PCMA/8000\r\n"
+      + "a=rtpmap:106 CN/32000\r\n"
+      + "a=rtpmap:105 CN/16000\r\n"
+      + "a=rtpmap:13 CN/8000\r\n"
+      + "a=rtpmap:110 telephone-event/48000\r\n"
+      + "a=rtpmap:112 telephone-event/32000\r\n"
+      + "a=rtpmap:113 telephone-event/16000\r\n"
+      + "a=rtpmap:126 telephone-event/8000\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:104 ISAC/32000\r\n"
+      + "a=rtpmap:98 VP9/90000\r\n"
+      + "a=rtpmap:100 H264/90000\r\n"
+      + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+      + "a=rtpmap:127 red/90000\r\n"
+      + "a=rtpmap:125 ulpfec/90000\r\n"
+      + "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+      + "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+      + "a=extmap:4 urn:3gpp:video-orientation\r\n"
+      + "a=extmap:5 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+      + "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay\r\n"
+      + "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type\r\n"
+      + "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/video-timing\r\n"
+      + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtcp-fb:111 transport-cc\r\n"
+      + "a=rtpmap:96 VP8/90000\r\n"
+      + "a=rtcp-fb:96 goog-remb\r\n"
+      + "a=rtcp-fb:96 transport-cc\r\n"
+      + "a=rtcp-fb:96 ccm fir\r\n"
+      + "a=rtcp-fb:96 nack\r\n"
+      + "a=rtcp-fb:96 nack pli\r\n"
+      + "a=rtpmap:97 rtx/90000\r\n"
+      + "a=fmtp:97 apt=96\r\n"
+      + "a=ssrc-group:FID \r\n"
+      + "v=0\r\n"
+      + "o=- \r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio video\r\n"
+      + "a=msid-semantic: WMS \r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=ice-options:trickle\r\n"
+      + "a=fingerprint:sha-256 \r\n"
+      + "a=setup:actpass\r\n"
+      + "a=setup:active\r\n"
+      + "a=mid:audio\r\n"
+      + "a=mid:video\r\n"
+      + "a=sendrecv\r\n"
+      + "a=rtcp-mux\r\n"
+      + "a=rtcp-rsize\r\n"
+      + "a=ice-ufrag:\r\n"
+      + "a=ice-pwd:\r\n"
+      + "a=ssrc:\r\n"
+      + " cname:\r\n"
+      + " msid:\r\n"
+      + " mslabel:\r\n"
+      + " label:\r\n").getBytes(UTF_8);
+
+  private SdpCompressor() {}
+
+  /**
+   * Returns |sdp| compressed and encoded in base64.
+   */
+  public static String compress(String sdp) {
+    return Base64.encodeToString(deflate(sdp), Base64.NO_WRAP);
+  }
+
+  /**
+   * Returns the session description encoded by {@link #compress}.
+   *
+   * @throws IOException if |compressed| is not a valid compressed session description.
+   */
+  public static String decompress(String compressed) throws IOException {
+    final byte[] input;
+    try {
+      input = Base64.decode(compressed, Base64.DEFAULT);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid base64 in compressed SDP");
+    }
+    return inflate(input);
+  }
+
+  // Compresses |sdp| with the preset dictionary. Separate from the base64 encoding, which
+  // needs the Android framework, so that it can be unit tested on the JVM.
+  static byte[] deflate(String sdp) {
+    final byte[] input = sdp.getBytes(UTF_8);
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(input);
+      deflater.finish();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+      final byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  // Decompresses data compressed by deflate.
+  static String inflate(byte[] input) throws IOException {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(input);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+      final byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        final int length = inflater.inflate(buffer);
+        if (length == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(DICTIONARY);
+          } else if (inflater.needsInput() && !inflater.finished()) {
+            throw new IOException("Truncated compressed SDP");
+          }
+        }
+        out.write(buffer, 0, length);
+        if (out.size() > MAX_SDP_SIZE) {
+          throw new IOException("Compressed SDP too large");
+        }
+      }
+      return new String(out.toByteArray(), UTF_8);
+    } catch (DataFormatException | IllegalArgumentException e) {
+      // IllegalArgumentException is thrown for a preset dictionary not matching DICTIONARY.
+      throw new IOException("Invalid compressed SDP: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package org.appspot.apprtc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encoder and decoder of the AppRTC signaling messages: offer, answer, candidate,
+ * remove-candidates and bye, and of the WebSocket server commands wrapping them.
+ *
+ * <p>Messages are written field by field into a buffer reused by all the messages encoded by
+ * the same instance, instead of building a JSONObject per message. An encoder instance must be
+ * used from one thread only; decoding is thread safe.
+ *
+ * <p>Session descriptions advertise the SdpCompressor in an "accept" field and are sent
+ * compressed in an "sdpz" field instead of "sdp" once the remote peer advertised it. Peers
+ * ignoring the "accept" field never receive compressed session descriptions.
+ */
+public class SignalingCodec {
+  public static final String BYE = "{\"type\":\"bye\"}";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int INITIAL_CAPACITY = 4096;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Types of signaling messages.
+   */
+  public enum Type { OFFER, ANSWER, CANDIDATE, REMOVE_CANDIDATES, BYE, ERROR }
+
+  /**
+   * Decoded signaling message.
+   */
+  public static class Message {
+    public final Type type;
+    @Nullable
+    public final SessionDescription sdp;
+    @Nullable
+    public final IceCandidate candidate;
+    @Nullable
+    public final IceCandidate[] candidates;
+    // Error reported by the WebSocket server for Type.ERROR.
+    @Nullable
+    public final String error;
+    // True if the sender accepts compressed session descriptions.
+    public final boolean acceptsCompression;
+    // Sequence number assigned by the sender's WebSocketChannelClient or 0.
+    public final int sequenceNumber;
+
+    private Message(Type type, @Nullable SessionDescription sdp, @Nullable IceCandidate candidate,
+        @Nullable IceCandidate[] candidates, @Nullable String error, boolean acceptsCompression,
+        int sequenceNumber) {
+      this.type = type;
+      this.sdp = sdp;
+      this.candidate = candidate;
+      this.candidates = candidates;
+      this.error = error;
+      this.acceptsCompression = acceptsCompression;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private final StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+  public String encodeSessionDescription(SessionDescription sdp) {
+    return encodeSessionDescription(sdp, false);
+  }
+
+  /**
+   * Encodes |sdp|, compressed if |compress| is true, which requires the remote peer to
+   * accept compression.
+   */
+  public String encodeSessionDescription(SessionDescription sdp, boolean compress) {
+    buffer.setLength(0);
+    if (compress) {
+      buffer.append("{\"sdpz\":");
+      appendString(buffer, SdpCompressor.compress(sdp.description));
+    } else {
+      buffer.append("{\"sdp\":");
+      appendString(buffer, sdp.description);
+    }
+    buffer.append(",\"type\":");
+    appendString(buffer, sdp.type.canonicalForm());
+    buffer.append(",\"accept\":\"").append(SdpCompressor.NAME).append("\"}");
+    return buffer.toString();
+  }
+
+  public String encodeCandidate(IceCandidate candidate) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":\"candidate\",");
+    appendCandidateFields(buffer, candidate);
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  public String encodeCandidateRemovals(IceCandidate[] candidates) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":\"remove-candidates\",\"candidates\":[");
+    for (int i = 0; i < candidates.length; i++) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append('{');
+      appendCandidateFields(buffer, candidates[i]);
+      buffer.append('}');
+    }
+    buffer.append("]}");
+    return buffer.toString();
+  }
+
+  /**
+   * Encodes the WebSocket server command registering |clientId| in |roomId|. If |binary| is
+   * true the command offers the server to exchange signaling messages in binary frames.
+   */
+  public String encodeRegister(String roomId, String clientId, boolean binary) {
+    buffer.setLength(0);
+    buffer.append("{\"cmd\":\"register\",\"roomid\":");
+    appendString(buffer, roomId);
+    buffer.append(",\"clientid\":");
+    appendString(buffer, clientId);
+    if (binary) {
+      buffer.append(",\"binary\":true");
+    }
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /**
+   * Encodes the WebSocket server command sending |message|, which is escaped once into the
+   * command in a single pass.
+   */
+  public String encodeSend(String message) {
+    return encodeSend(message, 0);
+  }
+
+  /**
+   * Encodes the WebSocket server command sending |message| with |sequenceNumber|, which the
+   * server may acknowledge. A |sequenceNumber| of 0 is left out.
+   */
+  public String encodeSend(String message, int sequenceNumber) {
+    buffer.setLength(0);
+    buffer.ensureCapacity(message.length() + message.length() / 8 + 48);
+    buffer.append("{\"cmd\":\"send\",");
+    if (sequenceNumber > 0) {
+      buffer.append("\"seq\":").append(sequenceNumber).append(',');
+    }
+    buffer.append("\"msg\":");
+    appendString(buffer, message);
+    buffer.append('}');
+    return buffer.toString();
+  }
+
+  /**
+   * Returns encoded |message| with |sequenceNumber| added, for the receiver to drop
+   * duplicates.
+   */
+  public String addSequenceNumber(String message, int sequenceNumber) {
+    if (message.length() < 2 || message.charAt(0) != '{') {
+      return message;
+    }
+    buffer.setLength(0);
+    buffer.append("{\"seq\":").append(sequenceNumber);
+    if (message.charAt(1) != '}') {
+      buffer.append(',');
+    }
+    buffer.append(message, 1, message.length());
+    return buffer.toString();
+  }
+
+  private static void appendCandidateFields(StringBuilder sb, IceCandidate candidate) {
+    sb.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+    appendString(sb, candidate.sdpMid);
+    sb.append(",\"candidate\":");
+    appendString(sb, candidate.sdp);
+  }
+
+  // Appends |value| as a quoted JSON string.
+  private static void appendString(StringBuilder sb, @Nullable String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    final int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\') {
+        continue;
+      }
+      sb.append(value, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\b':
+          sb.append("\\b");
+          break;
+        case '\f':
+          sb.append("\\f");
+          break;
+        default:
+          sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+          break;
+      }
+    }
+    sb.append(value, start, length);
+    sb.append('"');
+  }
+
+  /**
+   * Decodes a signaling message. Returns null for messages of unknown type.
+   *
+   * @throws IOException if |json| is not a valid signaling message.
+   */
+  @Nullable
+  public static Message decode(String json) throws IOException {
+    final JsonReader reader = new JsonReader(new StringReader(json));
+    try {
+      return readMessage(reader);
+    } catch (IllegalStateException | NumberFormatException e) {
+      // Thrown by JsonReader for values of unexpected type.
+      throw new IOException("Unexpected signaling message: " + e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Decodes a signaling message from its UTF-8 encoding, e.g. the payload of a binary
+   * WebSocket frame, without converting it to a String first. Returns null for messages of
+   * unknown type.
+   *
+   * @throws IOException if |utf8| is not a valid signaling message.
+   */
+  @Nullable
+  public static Message decode(byte[] utf8) throws IOException {
+    final JsonReader reader =
+        new JsonReader(new InputStreamReader(new ByteArrayInputStream(utf8), UTF_8));
+    try {
+      return readMessage(reader);
+    } catch (IllegalStateException | NumberFormatException e) {
+      // Thrown by JsonReader for values of unexpected type.
+      throw new IOException("Unexpected signaling message: " + e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Decodes a message received from the WebSocket server: the signaling message it wraps, or
+   * a message of Type.ERROR for errors reported by the server. Returns null for messages of
+   * unknown type.
+   *
+   * @throws IOException if |payload| is not a valid WebSocket server message.
+   */
+  @Nullable
+  public static Message decodeWebSocketMessage(String payload) throws IOException {
+    String msg = null;
+    String error = null;
+    final JsonReader reader = new JsonReader(new StringReader(payload));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (name.equals("msg") && reader.peek() == JsonToken.STRING) {
+          msg = reader.nextString();
+        } else if (name.equals("error") && reader.peek() == JsonToken.STRING) {
+          error = reader.nextString();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+    } catch (IllegalStateException e) {
+      throw new IOException("Unexpected WebSocket message: " + e.getMessage());
+    } finally {
+      reader.close();
+    }
+    if (msg != null && msg.length() > 0) {
+      return decode(msg);
+    }
+    if (error != null && error.length() > 0) {
+      return new Message(Type.ERROR, null, null, null, error, false, 0);
+    }
+    if (msg == null) {
+      throw new IOException("No msg in WebSocket message");
+    }
+    return null;
+  }
+
+  /**
+   * Returns the sequence number acknowledged by a WebSocket server message like {"ack": 3} or
+   * -1 for other messages.
+   */
+  public static int decodeAck(String payload) {
+    if (payload.indexOf("\"ack\"") < 0) {
+      return -1;
+    }
+    int ack = -1;
+    final JsonReader reader = new JsonReader(new StringReader(payload));
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("ack") && reader.peek() == JsonToken.NUMBER) {
+          ack = reader.nextInt();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.close();
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      return -1;
+    }
+    return ack;
+  }
+
+  /**
+   * Reads a signaling message object from |reader|. Returns null for messages of unknown type
+   * or missing fields.
+   */
+  @Nullable
+  static Message readMessage(JsonReader reader) throws IOException {
+    String type = null;
+    String sdp = null;
+    String id = null;
+    int label = -1;
+    String candidate = null;
+    List<IceCandidate> candidates = null;
+    boolean acceptsCompression = false;
+    int sequenceNumber = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (name.equals("type")) {
+        type = reader.nextString();
+      } else if (name.equals("sdp")) {
+        sdp = reader.nextString();
+      } else if (name.equals("sdpz")) {
+        sdp = SdpCompressor.decompress(reader.nextString());
+      } else if (name.equals("seq")) {
+        sequenceNumber = reader.nextInt();
+      } else if (name.equals("accept")) {
+        acceptsCompression = SdpCompressor.NAME.equals(reader.nextString());
+      } else if (name.equals("id")) {
+        id = reader.nextString();
+      } else if (name.equals("label")) {
+        label = reader.nextInt();
+      } else if (name.equals("candidate")) {
+        candidate = reader.nextString();
+      } else if (name.equals("candidates")) {
+        candidates = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          candidates.add(readCandidate(reader));
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (type == null) {
+      return null;
+    }
+    switch (type) {
+      case "offer":
+      case "answer":
+        if (sdp == null) {
+          return null;
+        }
+        return new Message(type.equals("offer") ? Type.OFFER : Type.ANSWER,
+            new SessionDescription(SessionDescription.Type.fromCanonicalForm(type), sdp), null,
+            null, null, acceptsCompression, sequenceNumber);
+      case "candidate":
+        if (id == null || label < 0 || candidate == null) {
+          return null;
+        }
+        return new Message(
+            Type.CANDIDATE, null, new IceCandidate(id, label, candidate), null, null, false,
+            sequenceNumber);
+      case "remove-candidates":
+        if (candidates == null) {
+          return null;
+        }
+        return new Message(Type.REMOVE_CANDIDATES, null, null,
+            candidates.toArray(new IceCandidate[candidates.size()]), null, false,
+            sequenceNumber);
+      case "bye":
+        return new Message(Type.BYE, null, null, null, null, false, sequenceNumber);
+      default:
+        return null;
+    }
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String id = null;
+    int label = -1;
+    String candidate = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if (name.equals("id")) {
+        id = reader.nextString();
+      } else if (name.equals("label")) {
+        label = reader.nextInt();
+      } else if (name.equals("candidate")) {
+        candidate = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (id == null || label < 0 || candidate == null) {
+      throw new IOException("Incomplete ICE candidate");
+    }
+    return new IceCandidate(id, label, candidate);
+  }
+}
@@ -0,0 +1,523 @@
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.appspot.apprtc.AppRTCClient.RoomConnectionParameters;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Headless signaling load generator.
+ *
+ * <p>Drives pairs of simulated org.appspot.apprtc.WebSocketRTCClient endpoints against a room
+ * server: the initiator joins, sends an offer and its candidates, the responder joins, answers
+ * and sends its candidates, then both leave. Real clients are used so the room join, GAE POST and
+ * WebSocket message formats are exactly those of a normal call. Call setup latency is measured
+ * on the initiator from the start of the room join until the remote answer arrives.
+ *
+ * <p>Events are dispatched on an internal looper thread.
+ */
+public class SignalingLoadGenerator {
+  private static final String TAG = "SignalingLoadGen";
+  private static final String ROOM_PREFIX = "loadtest-";
+  // Delay between starting consecutive pairs so the room server is not hit by a single burst.
+  private static final int DEFAULT_RAMP_UP_INTERVAL_MS = 50;
+  private static final int DEFAULT_PAIR_TIMEOUT_MS = 30000;
+
+  /**
+   * Load test callbacks. Invoked on the load generator looper thread.
+   */
+  public interface LoadTestEvents {
+    /**
+     * Callback fired each time a call pair completes or fails.
+     */
+    void onLoadTestProgress(int finishedPairs, int totalPairs);
+
+    /**
+     * Callback fired once all pairs are finished.
+     */
+    void onLoadTestComplete(final Report report);
+  }
+
+  /**
+   * Struct holding the result of a load test run.
+   */
+  public static class Report {
+    public final int totalPairs;
+    public final int completedPairs;
+    public final int failedPairs;
+    public final long setupLatencyP50Ms;
+    public final long setupLatencyP90Ms;
+    public final long setupLatencyP99Ms;
+    public final long setupLatencyMaxMs;
+    public final int messagesSent;
+    public final int messagesReceived;
+    public final long elapsedMs;
+    public final int peakThreadCount;
+
+    Report(int totalPairs, int completedPairs, int failedPairs, long[] sortedLatenciesMs,
+        int messagesSent, int messagesReceived, long elapsedMs, int peakThreadCount) {
+      this.totalPairs = totalPairs;
+      this.completedPairs = completedPairs;
+      this.failedPairs = failedPairs;
+      this.setupLatencyP50Ms = percentile(sortedLatenciesMs, 50);
+      this.setupLatencyP90Ms = percentile(sortedLatenciesMs, 90);
+      this.setupLatencyP99Ms = percentile(sortedLatenciesMs, 99);
+      this.setupLatencyMaxMs =
+          sortedLatenciesMs.length > 0 ? sortedLatenciesMs[sortedLatenciesMs.length - 1] : 0;
+      this.messagesSent = messagesSent;
+      this.messagesReceived = messagesReceived;
+      this.elapsedMs = elapsedMs;
+      this.peakThreadCount = peakThreadCount;
+    }
+
+    public double getMessagesPerSecond() {
+      return elapsedMs > 0 ? (messagesSent + messagesReceived) * 1000.0 / elapsedMs : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "pairs=%d completed=%d failed=%d setup(ms) p50=%d p90=%d p99=%d max=%d "
+              + "sent=%d received=%d elapsed=%dms throughput=%.1f msg/s peakThreads=%d",
+          totalPairs, completedPairs, failedPairs, setupLatencyP50Ms, setupLatencyP90Ms,
+          setupLatencyP99Ms, setupLatencyMaxMs, messagesSent, messagesReceived, elapsedMs,
+          getMessagesPerSecond(), peakThreadCount);
+    }
+
+    // Nearest-rank percentile of an ascending sorted array.
+    private static long percentile(long[] sorted, int percent) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+      return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+  }
+
+  private final String roomUrl;
+  @Nullable
+  private final String urlParameters;
+  private final int numPairs;
+  private final int candidatesPerEndpoint;
+  private final LoadTestEvents events;
+  private final Handler handler;
+  private final String runId;
+  private final AtomicInteger messagesSent = new AtomicInteger();
+  private final AtomicInteger messagesReceived = new AtomicInteger();
+  private final List<CallPair> pairs = new ArrayList<>();
+  private final List<Long> setupLatenciesMs = new ArrayList<>();
+  private int rampUpIntervalMs = DEFAULT_RAMP_UP_INTERVAL_MS;
+  private int pairTimeoutMs = DEFAULT_PAIR_TIMEOUT_MS;
+  private int finishedPairs;
+  private int failedPairs;
+  private int peakThreadCount;
+  private long startTimeMs;
+  private boolean running;
+
+  public SignalingLoadGenerator(String roomUrl, @Nullable String urlParameters, int numPairs,
+      int candidatesPerEndpoint, LoadTestEvents events) {
+    this.roomUrl = roomUrl;
+    this.urlParameters = urlParameters;
+    this.numPairs = numPairs;
+    this.candidatesPerEndpoint = candidatesPerEndpoint;
+    this.events = events;
+    this.runId = Integer.toString(new Random().nextInt(100000000));
+    handler = HandlerThreadHandler.createHandler(TAG);
+  }
+
+  public void setRampUpInterval(int rampUpIntervalMs) {
+    this.rampUpIntervalMs = rampUpIntervalMs;
+  }
+
+  public void setPairTimeout(int pairTimeoutMs) {
+    this.pairTimeoutMs = pairTimeoutMs;
+  }
+
+  public void start() {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        startInternal();
+      }
+    });
+  }
+
+  /**
+   * Aborts all pairs that are still running and reports the partial result.
+   */
+  public void stop() {
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (CallPair pair : pairs) {
+          pair.finish(false);
+        }
+      }
+    });
+  }
+
+  private void startInternal() {
+    if (running) {
+      Log.w(TAG, "Load test is already running.");
+      return;
+    }
+    running = true;
+    startTimeMs = SystemClock.elapsedRealtime();
+    Log.d(TAG, "Starting " + numPairs + " call pairs against " + roomUrl);
+    for (int i = 0; i < numPairs; i++) {
+      final CallPair pair = new CallPair(ROOM_PREFIX + runId + "-" + i, i);
+      pairs.add(pair);
+      handler.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          pair.start();
+        }
+      }, (long) i * rampUpIntervalMs);
+    }
+    if (numPairs == 0) {
+      complete();
+    }
+  }
+
+  private void onPairFinished(CallPair pair, boolean success) {
+    finishedPairs++;
+    if (success) {
+      setupLatenciesMs.add(pair.setupLatencyMs);
+    } else {
+      failedPairs++;
+    }
+    events.onLoadTestProgress(finishedPairs, numPairs);
+    if (finishedPairs == numPairs) {
+      complete();
+    }
+  }
+
+  private void complete() {
+    long[] latencies = new long[setupLatenciesMs.size()];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = setupLatenciesMs.get(i);
+    }
+    Arrays.sort(latencies);
+    Report report = new Report(numPairs, numPairs - failedPairs, failedPairs, latencies,
+        messagesSent.get(), messagesReceived.get(), SystemClock.elapsedRealtime() - startTimeMs,
+        peakThreadCount);
+    Log.i(TAG, "Load test complete: " + report);
+    running = false;
+    events.onLoadTestComplete(report);
+    handler.getLooper().quit();
+  }
+
+  // Thread creation per signaling message shows up here as a peak far above the pair count.
+  private void sampleThreadCount() {
+    peakThreadCount = Math.max(peakThreadCount, Thread.activeCount());
+  }
+
+  // Runs |runnable| on the load generator looper thread.
+  private void post(Runnable runnable) {
+    handler.post(runnable);
+  }
+
+  private static IceCandidate createCandidate(int pairIndex, int endpoint, int index) {
+    String address = "192.0.2." + (1 + (pairIndex * 2 + endpoint) % 254);
+    int port = 50000 + index;
+    return new IceCandidate("0", 0,
+        "candidate:" + (index + 1) + " 1 udp 2122260223 " + address + " " + port
+            + " typ host generation 0 ufrag load network-id 1");
+  }
+
+  // Returns an SDP of a size and shape similar to a real audio/video offer or answer.
+  private static SessionDescription createSessionDescription(SessionDescription.Type type) {
+    StringBuilder sdp = new StringBuilder();
+    sdp.append("v=0\r\n")
+        .append("o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n")
+        .append("s=-\r\n")
+        .append("t=0 0\r\n")
+        .append("a=group:BUNDLE 0 1\r\n")
+        .append("a=msid-semantic: WMS ARDAMS\r\n");
+    appendMediaSection(sdp, "audio", "0", "111 103 104 9 102 0 8 106 105 13 110 112 113 126",
+        type == SessionDescription.Type.OFFER);
+    appendMediaSection(sdp, "video", "1", "96 97 98 99 100 101 127 124 125",
+        type == SessionDescription.Type.OFFER);
+    return new SessionDescription(type, sdp.toString());
+  }
+
+  private static void appendMediaSection(
+      StringBuilder sdp, String media, String mid, String payloadTypes, boolean offer) {
+    sdp.append("m=").append(media).append(" 9 UDP/TLS/RTP/SAVPF ").append(payloadTypes)
+        .append("\r\n")
+        .append("c=IN IP4 0.0.0.0\r\n")
+        .append("a=rtcp:9 IN IP4 0.0.0.0\r\n")
+        .append("a=ice-ufrag:load\r\n")
+        .append("a=ice-pwd:loadtestloadtestloadtest\r\n")
+        .append("a=ice-options:trickle\r\n")
+        .append("a=fingerprint:sha-256 ")
+        .append("7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:")
+        .append("DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08\r\n")
+        .append("a=setup:").append(offer ? "actpass" : "active").append("\r\n")
+        .append("a=mid:").append(mid).append("\r\n")
+        .append("a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n")
+        .append("a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n")
+        .append("a=sendrecv\r\n")
+        .append("a=msid:ARDAMS ARDAMS").append(media.charAt(0)).append("0\r\n")
+        .append("a=rtcp-mux\r\n");
+    for (String payloadType : payloadTypes.split(" ")) {
+      sdp.append("a=rtpmap:").append(payloadType).append(' ')
+          .append("audio".equals(media) ? "opus/48000/2" : "VP8/90000").append("\r\n")
+          .append("a=rtcp-fb:").append(payloadType).append(" transport-cc\r\n")
+          .append("a=fmtp:").append(payloadType).append(" minptime=10;useinbandfec=1\r\n");
+    }
+    sdp.append("a=ssrc:").append(1000 + mid.hashCode()).append(" cname:loadtest\r\n");
+  }
+
+  /**
+   * One simulated call: an initiator and a responder joining the same room.
+   */
+  private class CallPair {
+    private final String roomId;
+    private final int index;
+    private final Endpoint initiator;
+    private final Endpoint responder;
+    private long joinStartTimeMs;
+    private long setupLatencyMs;
+    private boolean answerReceived;
+    private boolean finished;
+
+    private final Runnable timeoutRunnable = new Runnable() {
+      @Override
+      public void run() {
+        Log.w(TAG, "Pair " + roomId + " timed out.");
+        finish(false);
+      }
+    };
+
+    CallPair(String roomId, int index) {
+      this.roomId = roomId;
+      this.index = index;
+      initiator = new Endpoint(this, 0);
+      responder = new Endpoint(this, 1);
+    }
+
+    void start() {
+      if (finished) {
+        return;
+      }
+      handler.postDelayed(timeoutRunnable, pairTimeoutMs);
+      joinStartTimeMs = SystemClock.elapsedRealtime();
+      initiator.join();
+    }
+
+    // Both endpoints are done once the initiator has the answer and each side got all candidates.
+    void checkDone() {
+      if (answerReceived && initiator.receivedCandidates >= candidatesPerEndpoint
+          && responder.receivedCandidates >= candidatesPerEndpoint) {
+        finish(true);
+      }
+    }
+
+    void onInitiatorConnected() {
+      initiator.sendDescription(SessionDescription.Type.OFFER);
+      initiator.sendCandidates();
+      responder.join();
+    }
+
+    void onResponderOffer() {
+      responder.sendDescription(SessionDescription.Type.ANSWER);
+      responder.sendCandidates();
+    }
+
+    void onInitiatorAnswer() {
+      if (answerReceived) {
+        return;
+      }
+      answerReceived = true;
+      setupLatencyMs = SystemClock.elapsedRealtime() - joinStartTimeMs;
+      checkDone();
+    }
+
+    void finish(boolean success) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      handler.removeCallbacks(timeoutRunnable);
+      initiator.leave();
+      responder.leave();
+      onPairFinished(this, success);
+    }
+  }
+
+  /**
+   * Simulated call endpoint. Signaling events arrive on the WebSocketRTCClient looper thread and
+   * are routed to the load generator looper thread.
+   */
+  private class Endpoint implements AppRTCClient.SignalingEvents {
+    private final CallPair pair;
+    private final int endpointIndex;
+    @Nullable
+    private AppRTCClient client;
+    private boolean offerHandled;
+    private int receivedCandidates;
+
+    Endpoint(CallPair pair, int endpointIndex) {
+      this.pair = pair;
+      this.endpointIndex = endpointIndex;
+    }
+
+    void join() {
+      client = new WebSocketRTCClient(this);
+      client.connectToRoom(
+          new RoomConnectionParameters(roomUrl, pair.roomId, false /* loopback */, urlParameters));
+      sampleThreadCount();
+    }
+
+    void leave() {
+      if (client != null) {
+        client.disconnectFromRoom();
+        client = null;
+      }
+    }
+
+    void sendDescription(SessionDescription.Type type) {
+      if (client == null) {
+        return;
+      }
+      SessionDescription sdp = createSessionDescription(type);
+      if (type == SessionDescription.Type.OFFER) {
+        client.sendOfferSdp(sdp);
+      } else {
+        client.sendAnswerSdp(sdp);
+      }
+      messagesSent.incrementAndGet();
+      sampleThreadCount();
+    }
+
+    void sendCandidates() {
+      if (client == null) {
+        return;
+      }
+      for (int i = 0; i < candidatesPerEndpoint; i++) {
+        client.sendLocalIceCandidate(createCandidate(pair.index, endpointIndex, i));
+        messagesSent.incrementAndGet();
+      }
+      sampleThreadCount();
+    }
+
+    private void handleOffer() {
+      if (!offerHandled) {
+        offerHandled = true;
+        pair.onResponderOffer();
+      }
+    }
+
+    private void addReceivedCandidates(int count) {
+      receivedCandidates += count;
+      messagesReceived.addAndGet(count);
+      pair.checkDone();
+    }
+
+    @Override
+    public void onConnectedToRoom(final SignalingParameters params) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          if (pair.finished) {
+            return;
+          }
+          sampleThreadCount();
+          if (params.initiator) {
+            pair.onInitiatorConnected();
+            return;
+          }
+          if (params.offerSdp != null) {
+            messagesReceived.incrementAndGet();
+            handleOffer();
+          }
+          if (params.iceCandidates != null && !params.iceCandidates.isEmpty()) {
+            addReceivedCandidates(params.iceCandidates.size());
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onIceServersAdded(final List<PeerConnection.IceServer> iceServers) {}
+
+    @Override
+    public void onRemoteDescription(final SessionDescription sdp) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          if (pair.finished) {
+            return;
+          }
+          messagesReceived.incrementAndGet();
+          if (sdp.type == SessionDescription.Type.ANSWER) {
+            pair.onInitiatorAnswer();
+          } else {
+            handleOffer();
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onRemoteIceCandidate(final IceCandidate candidate) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          if (!pair.finished) {
+            addReceivedCandidates(1);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
+      messagesReceived.incrementAndGet();
+    }
+
+    @Override
+    public void onChannelClose() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          if (!pair.finished) {
+            Log.w(TAG, "Channel closed for " + pair.roomId + " endpoint " + endpointIndex);
+            pair.finish(false);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onChannelError(final String description) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          if (!pair.finished) {
+            Log.e(TAG, "Channel error for " + pair.roomId + " endpoint " + endpointIndex + ": "
+                + description);
+            pair.finish(false);
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package org.appspot.apprtc;
+
+import android.os.Handler;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+/**
+ * Signaling thread shared by all WebSocketRTCClient instances.
+ *
+ * <p>The looper thread lives as long as the process, so calls do not start and quit a thread
+ * each. Every call still uses a WebSocket connection of its own: the collider deregisters a
+ * client and closes its socket on the DELETE request sent when leaving the room, so a
+ * connection cannot be reused for the next call.
+ */
+public class SignalingSession {
+  private static final String TAG = "SignalingSession";
+
+  private static SignalingSession instance;
+
+  public static synchronized SignalingSession getInstance() {
+    if (instance == null) {
+      instance = new SignalingSession();
+    }
+    return instance;
+  }
+
+  private final Handler handler;
+
+  private SignalingSession() {
+    handler = HandlerThreadHandler.createHandler(TAG);
+  }
+
+  /**
+   * Returns the handler of the signaling looper thread.
+   */
+  public Handler getHandler() {
+    return handler;
+  }
+}
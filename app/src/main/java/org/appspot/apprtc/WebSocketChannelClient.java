@@ -13,13 +13,11 @@ import android.util.Log;
 
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 
 import javax.annotation.Nullable;
 
@@ -33,10 +31,29 @@ import de.tavendo.autobahn.WebSocketException;
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
+ *
+ * <p>The register command offers the server binary mode. A server supporting
+ * it sends signaling messages as binary frames carrying the UTF-8 encoded
+ * message without the {"msg": ...} wrapper, and once the first one is
+ * received messages are sent the same way instead of "send" commands.
+ *
+ * <p>If the connection is lost after registration the client reconnects with
+ * exponential backoff and registers again with the same room and client IDs.
+ * Outgoing messages get sequence numbers, in the send command for servers
+ * acknowledging them with {"ack": seq} and in the message for the remote peer
+ * to drop duplicates, and are kept until acknowledged to be sent again after
+ * reconnecting. For servers which do not acknowledge, such as the stock
+ * collider, only the messages which were never sent are sent after
+ * reconnecting, since peers may not drop duplicates.
  */
 public class WebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
   private static final int CLOSE_TIMEOUT = 1000;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAX_RECONNECT_ATTEMPTS = 8;
+  private static final int INITIAL_RECONNECT_DELAY_MS = 250;
+  private static final int MAX_RECONNECT_DELAY_MS = 8000;
+  private static final int MAX_UNACKED_MESSAGES = 64;
   private final WebSocketChannelEvents events;
   private final Handler handler;
   private WebSocketConnection ws;
@@ -52,14 +69,35 @@ public class WebSocketChannelClient {
   private WebSocketObserver wsObserver;
   private final Object closeEventLock = new Object();
   private boolean closeEvent;
-  // WebSocket send queue. Messages are added to the queue when WebSocket
-  // client is not registered and are consumed in register() call.
-  private final List<String> wsSendQueue = new ArrayList<>();
+  // WebSocket send queue. Messages are added to the queue when they are sent
+  // and removed when acknowledged by the server, or once sent if the server
+  // does not acknowledge messages. Messages are sent in register() if
+  // WebSocket client is not registered.
+  private final ArrayDeque<OutgoingMessage> wsSendQueue = new ArrayDeque<>();
+  private final SignalingCodec codec = new SignalingCodec();
+  // True once the server sent a binary frame.
+  private boolean binaryMode;
+  private int nextSequenceNumber = 1;
+  // True once the server acknowledged a message.
+  private boolean serverAcks;
+  private boolean registered;
+  private int reconnectAttempts;
+
+  private static class OutgoingMessage {
+    final int sequenceNumber;
+    final String message;
+    boolean sent;
+
+    OutgoingMessage(int sequenceNumber, String message) {
+      this.sequenceNumber = sequenceNumber;
+      this.message = message;
+    }
+  }
 
   /**
    * Possible WebSocket connection states.
    */
-  public enum WebSocketConnectionState { NEW, CONNECTED, REGISTERED, CLOSED, ERROR }
+  public enum WebSocketConnectionState { NEW, CONNECTED, REGISTERED, RECONNECTING, CLOSED, ERROR }
 
   /**
    * Callback interface for messages delivered on WebSocket.
@@ -67,6 +105,7 @@ public class WebSocketChannelClient {
    */
   public interface WebSocketChannelEvents {
     void onWebSocketMessage(final String message);
+    void onWebSocketBinaryMessage(final byte[] message);
     void onWebSocketClose();
     void onWebSocketError(final String description);
   }
@@ -91,20 +130,55 @@ public class WebSocketChannelClient {
     }
     wsServerUrl = wsUrl;
     postServerUrl = postUrl;
-    closeEvent = false;
 
     Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
+    CallSetupTracer.beginPhase(CallSetupTracer.WEBSOCKET_OPEN);
+    openWebSocket();
+  }
+
+  private void openWebSocket() {
+    closeEvent = false;
+    binaryMode = false;
     ws = new WebSocketConnection();
-    wsObserver = new WebSocketObserver();
+    wsObserver = new WebSocketObserver(ws);
     try {
       ws.connect(new URI(wsServerUrl), wsObserver);
     } catch (URISyntaxException e) {
       reportError("URI error: " + e.getMessage());
     } catch (WebSocketException e) {
-      reportError("WebSocket connection error: " + e.getMessage());
+      if (state == WebSocketConnectionState.RECONNECTING) {
+        Log.e(TAG, "WebSocket reconnection error: " + e.getMessage());
+        scheduleReconnect();
+      } else {
+        reportError("WebSocket connection error: " + e.getMessage());
+      }
     }
   }
 
+  private void scheduleReconnect() {
+    if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+      Log.e(TAG, "WebSocket reconnection failed after " + reconnectAttempts + " attempts.");
+      state = WebSocketConnectionState.CLOSED;
+      events.onWebSocketClose();
+      return;
+    }
+    final int delayMs =
+        Math.min(INITIAL_RECONNECT_DELAY_MS << reconnectAttempts, MAX_RECONNECT_DELAY_MS);
+    reconnectAttempts++;
+    Log.d(TAG, "Reconnecting WebSocket in " + delayMs + " ms. Attempt: " + reconnectAttempts);
+    state = WebSocketConnectionState.RECONNECTING;
+    handler.postDelayed(reconnectRunnable, delayMs);
+  }
+
+  private final Runnable reconnectRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if (state == WebSocketConnectionState.RECONNECTING) {
+        openWebSocket();
+      }
+    }
+  };
+
   public void register(final String roomID, final String clientID) {
     checkIfCalledOnValidThread();
     this.roomID = roomID;
@@ -114,50 +188,76 @@ public class WebSocketChannelClient {
       return;
     }
     Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-    JSONObject json = new JSONObject();
-    try {
-      json.put("cmd", "register");
-      json.put("roomid", roomID);
-      json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
-      ws.sendTextMessage(json.toString());
-      state = WebSocketConnectionState.REGISTERED;
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
-      }
-      wsSendQueue.clear();
-    } catch (JSONException e) {
-      reportError("WebSocket register JSON error: " + e.getMessage());
+    String message = codec.encodeRegister(roomID, clientID, true);
+    Log.d(TAG, "C->WSS: " + message);
+    ws.sendTextMessage(message);
+    CallSetupTracer.instant(CallSetupTracer.WEBSOCKET_REGISTER);
+    state = WebSocketConnectionState.REGISTERED;
+    if (registered) {
+      Log.d(TAG, "WebSocket registered again after " + reconnectAttempts + " attempts.");
+    }
+    registered = true;
+    reconnectAttempts = 0;
+    // Send any previously accumulated messages and the messages which may
+    // have been lost with the previous connection.
+    pruneSendQueue();
+    for (OutgoingMessage sendMessage : wsSendQueue) {
+      transmit(sendMessage);
     }
   }
 
   public void send(String message) {
     checkIfCalledOnValidThread();
-    switch (state) {
-      case NEW:
-      case CONNECTED:
-        // Store outgoing messages and send them after websocket client
-        // is registered.
-        Log.d(TAG, "WS ACC: " + message);
-        wsSendQueue.add(message);
-        return;
-      case ERROR:
-      case CLOSED:
-        Log.e(TAG, "WebSocket send() in error or closed state : " + message);
-        return;
-      case REGISTERED:
-        JSONObject json = new JSONObject();
-        try {
-          json.put("cmd", "send");
-          json.put("msg", message);
-          message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
-        } catch (JSONException e) {
-          reportError("WebSocket send JSON error: " + e.getMessage());
-        }
-        break;
+    if (state == WebSocketConnectionState.ERROR || state == WebSocketConnectionState.CLOSED) {
+      Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+      return;
+    }
+    final int sequenceNumber = nextSequenceNumber++;
+    final OutgoingMessage outgoingMessage =
+        new OutgoingMessage(sequenceNumber, codec.addSequenceNumber(message, sequenceNumber));
+    pruneSendQueue();
+    if (wsSendQueue.size() >= MAX_UNACKED_MESSAGES) {
+      // Dropping a signaling message silently would leave the call half negotiated.
+      reportError("WebSocket send queue full, " + wsSendQueue.size()
+          + " messages pending since " + wsSendQueue.peekFirst().sequenceNumber);
+      return;
+    }
+    wsSendQueue.addLast(outgoingMessage);
+    if (state == WebSocketConnectionState.REGISTERED) {
+      transmit(outgoingMessage);
+    } else {
+      // Send outgoing messages after websocket client is registered.
+      Log.d(TAG, "WS ACC: " + message);
+    }
+  }
+
+  private void transmit(OutgoingMessage outgoingMessage) {
+    if (binaryMode) {
+      Log.d(TAG, "C->WSS (binary): " + outgoingMessage.message);
+      ws.sendBinaryMessage(outgoingMessage.message.getBytes(UTF_8));
+    } else {
+      String message = codec.encodeSend(outgoingMessage.message, outgoingMessage.sequenceNumber);
+      Log.d(TAG, "C->WSS: " + message);
+      ws.sendTextMessage(message);
+    }
+    outgoingMessage.sent = true;
+  }
+
+  // Removes the messages which are not sent again after reconnecting: without
+  // acknowledgements these are all messages already sent.
+  private void pruneSendQueue() {
+    if (serverAcks) {
+      return;
+    }
+    while (!wsSendQueue.isEmpty() && wsSendQueue.peekFirst().sent) {
+      wsSendQueue.pollFirst();
+    }
+  }
+
+  private void onAck(int sequenceNumber) {
+    serverAcks = true;
+    while (!wsSendQueue.isEmpty() && wsSendQueue.peekFirst().sequenceNumber <= sequenceNumber) {
+      wsSendQueue.pollFirst();
     }
   }
 
@@ -171,9 +271,15 @@ public class WebSocketChannelClient {
   public void disconnect(boolean waitForComplete) {
     checkIfCalledOnValidThread();
     Log.d(TAG, "Disconnect WebSocket. State: " + state);
+    handler.removeCallbacks(reconnectRunnable);
+    if (state == WebSocketConnectionState.RECONNECTING) {
+      // Leave the room, the server dropped the registration with the connection.
+      sendWSSMessage("DELETE", "");
+      state = WebSocketConnectionState.CONNECTED;
+    }
     if (state == WebSocketConnectionState.REGISTERED) {
       // Send "bye" to WebSocket server.
-      send("{\"type\": \"bye\"}");
+      send(SignalingCodec.BYE);
       state = WebSocketConnectionState.CONNECTED;
       // Send http DELETE to http WebSocket server.
       sendWSSMessage("DELETE", "");
@@ -240,12 +346,24 @@ public class WebSocketChannelClient {
   }
 
   private class WebSocketObserver implements WebSocketConnectionObserver {
+    // Events of connections replaced by a reconnection are ignored.
+    private final WebSocketConnection connection;
+
+    WebSocketObserver(WebSocketConnection connection) {
+      this.connection = connection;
+    }
+
     @Override
     public void onOpen() {
       Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+      CallSetupTracer.endPhase(CallSetupTracer.WEBSOCKET_OPEN);
       handler.post(new Runnable() {
         @Override
         public void run() {
+          if (connection != ws || (state != WebSocketConnectionState.NEW
+                                      && state != WebSocketConnectionState.RECONNECTING)) {
+            return;
+          }
           state = WebSocketConnectionState.CONNECTED;
           // Check if we have pending register request.
           if (roomID != null && clientID != null) {
@@ -266,7 +384,13 @@ public class WebSocketChannelClient {
       handler.post(new Runnable() {
         @Override
         public void run() {
-          if (state != WebSocketConnectionState.CLOSED) {
+          if (connection != ws || state == WebSocketConnectionState.CLOSED) {
+            return;
+          }
+          if (registered && roomID != null && clientID != null
+              && state != WebSocketConnectionState.ERROR) {
+            scheduleReconnect();
+          } else {
             state = WebSocketConnectionState.CLOSED;
             events.onWebSocketClose();
           }
@@ -278,10 +402,16 @@ public class WebSocketChannelClient {
     public void onTextMessage(String payload) {
       Log.d(TAG, "WSS->C: " + payload);
       final String message = payload;
+      final int ack = SignalingCodec.decodeAck(payload);
       handler.post(new Runnable() {
         @Override
         public void run() {
-          if (state == WebSocketConnectionState.CONNECTED
+          if (connection != ws) {
+            return;
+          }
+          if (ack > 0) {
+            onAck(ack);
+          } else if (state == WebSocketConnectionState.CONNECTED
               || state == WebSocketConnectionState.REGISTERED) {
             events.onWebSocketMessage(message);
           }
@@ -290,9 +420,26 @@ public class WebSocketChannelClient {
     }
 
     @Override
-    public void onRawTextMessage(byte[] payload) {}
+    public void onRawTextMessage(byte[] payload) {
+      // Only called if text messages are received raw, which is not enabled.
+      onTextMessage(new String(payload, UTF_8));
+    }
 
     @Override
-    public void onBinaryMessage(byte[] payload) {}
+    public void onBinaryMessage(final byte[] payload) {
+      Log.d(TAG, "WSS->C: binary message of " + payload.length + " bytes");
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (connection == ws && state == WebSocketConnectionState.REGISTERED) {
+            if (!binaryMode) {
+              Log.d(TAG, "WebSocket server switched to binary mode.");
+              binaryMode = true;
+            }
+            events.onWebSocketBinaryMessage(payload);
+          }
+        }
+      });
+    }
   }
 }
@@ -11,19 +11,20 @@ package org.appspot.apprtc;/*
 import android.os.Handler;
 import android.util.Log;
 
-import com.serenegiant.utils.HandlerThreadHandler;
-
 import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
+import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
+import java.io.IOException;
+import java.util.List;
+
 import javax.annotation.Nullable;
 
 /**
@@ -47,8 +48,16 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private enum MessageType { MESSAGE, LEAVE }
 
   private final Handler handler;
+  // Used on the handler thread only.
+  private final SignalingCodec codec = new SignalingCodec();
+  // True once the remote peer advertised accepting compressed session descriptions.
+  private boolean peerAcceptsCompression;
+  // Highest sequence number received from the remote peer, messages sent again by its
+  // WebSocketChannelClient after reconnecting are dropped.
+  private int lastRemoteSequenceNumber;
   private boolean initiator;
   private SignalingEvents events;
+  @Nullable
   private WebSocketChannelClient wsClient;
   private ConnectionState roomState;
   private RoomConnectionParameters connectionParameters;
@@ -58,7 +67,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   public WebSocketRTCClient(SignalingEvents events) {
     this.events = events;
     roomState = ConnectionState.NEW;
-    handler = HandlerThreadHandler.createHandler(TAG);
+    handler = SignalingSession.getInstance().getHandler();
   }
 
   // --------------------------------------------------------------------
@@ -82,7 +91,6 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       @Override
       public void run() {
         disconnectFromRoomInternal();
-        handler.getLooper().quit();
       }
     });
   }
@@ -92,7 +100,6 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     String connectionUrl = getConnectionUrl(connectionParameters);
     Log.d(TAG, "Connect to room: " + connectionUrl);
     roomState = ConnectionState.NEW;
-    wsClient = new WebSocketChannelClient(handler, this);
 
     RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
       @Override
@@ -109,6 +116,18 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       public void onSignalingParametersError(String description) {
         WebSocketRTCClient.this.reportError(description);
       }
+
+      @Override
+      public void onTurnServersReady(final List<PeerConnection.IceServer> turnServers) {
+        WebSocketRTCClient.this.handler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (roomState == ConnectionState.CONNECTED) {
+              events.onIceServersAdded(turnServers);
+            }
+          }
+        });
+      }
     };
 
     new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
@@ -123,7 +142,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     }
     roomState = ConnectionState.CLOSED;
     if (wsClient != null) {
-      wsClient.disconnect(true);
+      // The shared looper outlives the connection, so there is no need to wait for it to close.
+      wsClient.disconnect(false);
+      wsClient = null;
     }
   }
 
@@ -156,6 +177,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   // Callback issued when room parameters are extracted. Runs on local
   // looper thread.
   private void signalingParametersReady(final SignalingParameters signalingParameters) {
+    if (roomState != ConnectionState.NEW) {
+      Log.w(TAG, "Room connection completed in state " + roomState);
+      return;
+    }
     Log.d(TAG, "Room connection completed.");
     if (connectionParameters.loopback
         && (!signalingParameters.initiator || signalingParameters.offerSdp != null)) {
@@ -167,6 +192,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       Log.w(TAG, "No offer SDP in room response.");
     }
     initiator = signalingParameters.initiator;
+    peerAcceptsCompression = signalingParameters.offerAcceptsCompression;
     messageUrl = getMessageUrl(connectionParameters, signalingParameters);
     leaveUrl = getLeaveUrl(connectionParameters, signalingParameters);
     Log.d(TAG, "Message URL: " + messageUrl);
@@ -177,6 +203,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     events.onConnectedToRoom(signalingParameters);
 
     // Connect and register WebSocket client.
+    wsClient = new WebSocketChannelClient(handler, this);
     wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
     wsClient.register(connectionParameters.roomId, signalingParameters.clientId);
   }
@@ -191,10 +218,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           reportError("Sending offer SDP in non connected state.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "offer");
-        sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        sendPostMessage(MessageType.MESSAGE, messageUrl,
+            codec.encodeSessionDescription(sdp, peerAcceptsCompression));
         if (connectionParameters.loopback) {
           // In loopback mode rename this offer to answer and route it back.
           SessionDescription sdpAnswer = new SessionDescription(
@@ -215,10 +240,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           Log.e(TAG, "Sending answer in loopback mode.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "answer");
-        wsClient.send(json.toString());
+        sendWebSocketMessage(codec.encodeSessionDescription(sdp, peerAcceptsCompression));
       }
     });
   }
@@ -229,24 +251,20 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
+        String message = codec.encodeCandidate(candidate);
         if (initiator) {
           // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          sendPostMessage(MessageType.MESSAGE, messageUrl, message);
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          sendWebSocketMessage(message);
         }
       }
     });
@@ -258,26 +276,20 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "remove-candidates");
-        JSONArray jsonArray = new JSONArray();
-        for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
-        }
-        jsonPut(json, "candidates", jsonArray);
+        String message = codec.encodeCandidateRemovals(candidates);
         if (initiator) {
           // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate removals in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          sendPostMessage(MessageType.MESSAGE, messageUrl, message);
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidatesRemoved(candidates);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          sendWebSocketMessage(message);
         }
       }
     });
@@ -289,56 +301,67 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   // (passed to WebSocket client constructor).
   @Override
   public void onWebSocketMessage(final String msg) {
-    if (wsClient.getState() != WebSocketConnectionState.REGISTERED) {
+    if (wsClient == null || wsClient.getState() != WebSocketConnectionState.REGISTERED) {
       Log.e(TAG, "Got WebSocket message in non registered state.");
       return;
     }
     try {
-      JSONObject json = new JSONObject(msg);
-      String msgText = json.getString("msg");
-      String errorText = json.optString("error");
-      if (msgText.length() > 0) {
-        json = new JSONObject(msgText);
-        String type = json.optString("type");
-        if (type.equals("candidate")) {
-          events.onRemoteIceCandidate(toJavaCandidate(json));
-        } else if (type.equals("remove-candidates")) {
-          JSONArray candidateArray = json.getJSONArray("candidates");
-          IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-          for (int i = 0; i < candidateArray.length(); ++i) {
-            candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-          }
-          events.onRemoteIceCandidatesRemoved(candidates);
-        } else if (type.equals("answer")) {
-          if (initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received answer for call initiator: " + msg);
-          }
-        } else if (type.equals("offer")) {
-          if (!initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received offer for call receiver: " + msg);
-          }
-        } else if (type.equals("bye")) {
-          events.onChannelClose();
-        } else {
-          reportError("Unexpected WebSocket message: " + msg);
-        }
+      onSignalingMessage(SignalingCodec.decodeWebSocketMessage(msg), msg);
+    } catch (IOException e) {
+      reportError("WebSocket message JSON parsing error: " + e.toString());
+    }
+  }
+
+  @Override
+  public void onWebSocketBinaryMessage(final byte[] msg) {
+    if (wsClient == null || wsClient.getState() != WebSocketConnectionState.REGISTERED) {
+      Log.e(TAG, "Got WebSocket message in non registered state.");
+      return;
+    }
+    try {
+      SignalingCodec.Message message = SignalingCodec.decode(msg);
+      // The message is only converted to a String for error reports.
+      onSignalingMessage(message, message == null ? new String(msg, "UTF-8") : null);
+    } catch (IOException e) {
+      reportError("WebSocket binary message JSON parsing error: " + e.toString());
+    }
+  }
+
+  // |msg| is the received message, for error reports.
+  private void onSignalingMessage(
+      @Nullable SignalingCodec.Message message, @Nullable String msg) {
+    if (message != null && message.sequenceNumber > 0) {
+      if (message.sequenceNumber <= lastRemoteSequenceNumber) {
+        Log.d(TAG, "Dropping duplicate message " + message.sequenceNumber);
+        return;
+      }
+      lastRemoteSequenceNumber = message.sequenceNumber;
+    }
+    SignalingCodec.Type type = message != null ? message.type : null;
+    if (type == SignalingCodec.Type.CANDIDATE) {
+      events.onRemoteIceCandidate(message.candidate);
+    } else if (type == SignalingCodec.Type.REMOVE_CANDIDATES) {
+      events.onRemoteIceCandidatesRemoved(message.candidates);
+    } else if (type == SignalingCodec.Type.ANSWER) {
+      if (initiator) {
+        peerAcceptsCompression = message.acceptsCompression;
+        events.onRemoteDescription(message.sdp);
       } else {
-        if (errorText != null && errorText.length() > 0) {
-          reportError("WebSocket error message: " + errorText);
-        } else {
-          reportError("Unexpected WebSocket message: " + msg);
-        }
+        reportError("Received answer for call initiator.");
       }
-    } catch (JSONException e) {
-      reportError("WebSocket message JSON parsing error: " + e.toString());
+    } else if (type == SignalingCodec.Type.OFFER) {
+      if (!initiator) {
+        peerAcceptsCompression = message.acceptsCompression;
+        events.onRemoteDescription(message.sdp);
+      } else {
+        reportError("Received offer for call receiver.");
+      }
+    } else if (type == SignalingCodec.Type.BYE) {
+      events.onChannelClose();
+    } else if (type == SignalingCodec.Type.ERROR) {
+      reportError("WebSocket error message: " + message.error);
+    } else {
+      reportError("Unexpected WebSocket message: " + msg);
     }
   }
 
@@ -359,7 +382,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
-        if (roomState != ConnectionState.ERROR) {
+        // Errors of requests still running after disconnecting are not reported.
+        if (roomState != ConnectionState.ERROR && roomState != ConnectionState.CLOSED) {
           roomState = ConnectionState.ERROR;
           events.onChannelError(errorMessage);
         }
@@ -367,13 +391,14 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     });
   }
 
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+  // Send SDP or ICE candidate to the other participant through the WebSocket server.
+  private void sendWebSocketMessage(String message) {
+    if (wsClient == null) {
+      // The handler thread is shared, so tasks posted before disconnecting still run.
+      Log.w(TAG, "Dropping message after disconnect: " + message);
+      return;
     }
+    wsClient.send(message);
   }
 
   // Send SDP or ICE candidate to a room server.
@@ -408,19 +433,4 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         });
     httpConnection.send();
   }
-
-  // Converts a Java candidate to a JSONObject.
-  private JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
@@ -12,11 +12,12 @@ package org.appspot.apprtc.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
 
 /**
  * Asynchronous http requests implementation.
@@ -28,6 +29,7 @@ public class AsyncHttpURLConnection {
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
+  private final AsyncHttpStreamEvents streamEvents;
   private String contentType;
 
   /**
@@ -38,11 +40,30 @@ public class AsyncHttpURLConnection {
     void onHttpComplete(String response);
   }
 
+  /**
+   * Http requests callbacks reading the response body as a stream.
+   */
+  public interface AsyncHttpStreamEvents {
+    void onHttpError(String errorMessage);
+    // Called on the request thread with the response body, which is closed on return.
+    void onHttpResponse(InputStream response) throws IOException;
+  }
+
   public AsyncHttpURLConnection(String method, String url, String message, AsyncHttpEvents events) {
     this.method = method;
     this.url = url;
     this.message = message;
     this.events = events;
+    this.streamEvents = null;
+  }
+
+  public AsyncHttpURLConnection(
+      String method, String url, String message, AsyncHttpStreamEvents streamEvents) {
+    this.method = method;
+    this.url = url;
+    this.message = message;
+    this.events = null;
+    this.streamEvents = streamEvents;
   }
 
   public void setContentType(String contentType) {
@@ -89,26 +110,51 @@ public class AsyncHttpURLConnection {
       // Get response.
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
+        reportError("Non-200 response to " + method + " to URL: " + url + " : "
             + connection.getHeaderField(null));
         connection.disconnect();
         return;
       }
       InputStream responseStream = connection.getInputStream();
+      if (streamEvents != null) {
+        try {
+          streamEvents.onHttpResponse(responseStream);
+        } finally {
+          responseStream.close();
+          connection.disconnect();
+        }
+        return;
+      }
       String response = drainStream(responseStream);
       responseStream.close();
       connection.disconnect();
       events.onHttpComplete(response);
     } catch (SocketTimeoutException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " timeout");
+      reportError("HTTP " + method + " to " + url + " timeout");
     } catch (IOException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
+      reportError("HTTP " + method + " to " + url + " error: " + e.getMessage());
     }
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  private void reportError(String errorMessage) {
+    if (streamEvents != null) {
+      streamEvents.onHttpError(errorMessage);
+    } else {
+      events.onHttpError(errorMessage);
+    }
+  }
+
+  /**
+   * Return the contents of an InputStream as a UTF-8 String.
+   */
+  public static String drainStream(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[4096];
+    int length;
+    while ((length = reader.read(buffer)) != -1) {
+      sb.append(buffer, 0, length);
+    }
+    return sb.toString();
   }
 }
@@ -0,0 +1,152 @@
+package org.appspot.apprtc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the deflate stage of SdpCompressor. The base64 stage uses
+ * android.util.Base64, which is not available on the JVM.
+ */
+public class SdpCompressorTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String OFFER = "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio video\r\n"
+      + "a=msid-semantic: WMS ARDAMS\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=ice-ufrag:Kx3z\r\n"
+      + "a=ice-pwd:5QnMPxSKqfYxKX2lR0ZDvOSn\r\n"
+      + "a=ice-options:trickle\r\n"
+      + "a=fingerprint:sha-256 9D:4F:2A:31:7E:0C:B8:64:1A:55:0E:F2:8C:3B:A0:47:"
+      + "DE:91:6B:73:22:C5:E8:0A:14:9F:B6:30:5D:87:CA:E1\r\n"
+      + "a=setup:actpass\r\n"
+      + "a=mid:audio\r\n"
+      + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+      + "a=sendrecv\r\n"
+      + "a=rtcp-mux\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=rtcp-fb:111 transport-cc\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:104 ISAC/32000\r\n"
+      + "a=rtpmap:9 G722/8000\r\n"
+      + "a=rtpmap:102 ILBC/8000\r\n"
+      + "a=rtpmap:0 PCMU/8000\r\n"
+      + "a=rtpmap:8 PCMA/8000\r\n"
+      + "a=rtpmap:106 CN/32000\r\n"
+      + "a=rtpmap:105 CN/16000\r\n"
+      + "a=rtpmap:13 CN/8000\r\n"
+      + "a=rtpmap:110 telephone-event/48000\r\n"
+      + "a=rtpmap:112 telephone-event/32000\r\n"
+      + "a=rtpmap:113 telephone-event/16000\r\n"
+      + "a=rtpmap:126 telephone-event/8000\r\n"
+      + "a=ssrc:2316371946 cname:Vp1y3Ha2dXb0hQ0K\r\n"
+      + "a=ssrc:2316371946 msid:ARDAMS ARDAMSa0\r\n"
+      + "a=ssrc:2316371946 mslabel:ARDAMS\r\n"
+      + "a=ssrc:2316371946 label:ARDAMSa0\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=ice-ufrag:Kx3z\r\n"
+      + "a=ice-pwd:5QnMPxSKqfYxKX2lR0ZDvOSn\r\n"
+      + "a=ice-options:trickle\r\n"
+      + "a=fingerprint:sha-256 9D:4F:2A:31:7E:0C:B8:64:1A:55:0E:F2:8C:3B:A0:47:"
+      + "DE:91:6B:73:22:C5:E8:0A:14:9F:B6:30:5D:87:CA:E1\r\n"
+      + "a=setup:actpass\r\n"
+      + "a=mid:video\r\n"
+      + "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+      + "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+      + "a=extmap:4 urn:3gpp:video-orientation\r\n"
+      + "a=extmap:5 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+      + "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay\r\n"
+      + "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type\r\n"
+      + "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/video-timing\r\n"
+      + "a=sendrecv\r\n"
+      + "a=rtcp-mux\r\n"
+      + "a=rtcp-rsize\r\n"
+      + "a=rtpmap:96 VP8/90000\r\n"
+      + "a=rtcp-fb:96 goog-remb\r\n"
+      + "a=rtcp-fb:96 transport-cc\r\n"
+      + "a=rtcp-fb:96 ccm fir\r\n"
+      + "a=rtcp-fb:96 nack\r\n"
+      + "a=rtcp-fb:96 nack pli\r\n"
+      + "a=rtpmap:97 rtx/90000\r\n"
+      + "a=fmtp:97 apt=96\r\n"
+      + "a=rtpmap:98 VP9/90000\r\n"
+      + "a=rtpmap:100 H264/90000\r\n"
+      + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+      + "a=rtpmap:127 red/90000\r\n"
+      + "a=rtpmap:125 ulpfec/90000\r\n"
+      + "a=ssrc-group:FID 3842714126 1719526493\r\n"
+      + "a=ssrc:3842714126 cname:Vp1y3Ha2dXb0hQ0K\r\n"
+      + "a=ssrc:3842714126 msid:ARDAMS ARDAMSv0\r\n"
+      + "a=ssrc:3842714126 mslabel:ARDAMS\r\n"
+      + "a=ssrc:3842714126 label:ARDAMSv0\r\n";
+
+  @Test
+  public void roundTrip() throws IOException {
+    final byte[] compressed = SdpCompressor.deflate(OFFER);
+    assertEquals(OFFER, SdpCompressor.inflate(compressed));
+    // The dictionary holds most of the lines, base64 adds a third on top of this.
+    assertTrue("compressed to " + compressed.length + " bytes",
+        compressed.length < OFFER.length() / 3);
+  }
+
+  @Test
+  public void roundTripEmpty() throws IOException {
+    assertEquals("", SdpCompressor.inflate(SdpCompressor.deflate("")));
+  }
+
+  @Test
+  public void roundTripNonAscii() throws IOException {
+    final String sdp = "v=0\r\ns=セッション\r\ni=été\r\n";
+    assertEquals(sdp, SdpCompressor.inflate(SdpCompressor.deflate(sdp)));
+  }
+
+  @Test(expected = IOException.class)
+  public void truncated() throws IOException {
+    final byte[] compressed = SdpCompressor.deflate(OFFER);
+    SdpCompressor.inflate(Arrays.copyOf(compressed, compressed.length / 2));
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidData() throws IOException {
+    SdpCompressor.inflate(OFFER.getBytes(UTF_8));
+  }
+
+  @Test(expected = IOException.class)
+  public void otherDictionary() throws IOException {
+    final byte[] input = OFFER.getBytes(UTF_8);
+    final Deflater deflater = new Deflater();
+    final byte[] compressed = new byte[input.length * 2];
+    final int length;
+    try {
+      deflater.setDictionary("a=rtpmap:96 VP8/90000\r\n".getBytes(UTF_8));
+      deflater.setInput(input);
+      deflater.finish();
+      length = deflater.deflate(compressed);
+    } finally {
+      deflater.end();
+    }
+    SdpCompressor.inflate(Arrays.copyOf(compressed, length));
+  }
+
+  @Test(expected = IOException.class)
+  public void tooLarge() throws IOException {
+    final StringBuilder sdp = new StringBuilder();
+    while (sdp.length() <= 256 * 1024) {
+      sdp.append(OFFER);
+    }
+    SdpCompressor.inflate(SdpCompressor.deflate(sdp.toString()));
+  }
+}
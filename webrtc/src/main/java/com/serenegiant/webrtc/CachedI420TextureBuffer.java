@@ -0,0 +1,207 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.graphics.Matrix;
+import android.support.annotation.NonNull;
+
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * I420への変換結果をフレーム単位で共有するためのTextureBufferのラッパー
+ * 同じフレームを複数のVideoSinkへ引き渡す時に各VideoSinkがそれぞれ#toI420を呼ぶと
+ * そのたびにGPUからの読み戻しが発生するので, 最初の#toI420の変換結果を保持して
+ * 以降の#toI420では同じI420Bufferを返す
+ * VideoSinkは録画サイズ等へ#cropAndScaleしてから#toI420を呼ぶことが多いので
+ * #cropAndScaleの結果も同じ切り出し位置・サイズ毎に保持して共有し,
+ * 縮小後のサイズでの変換結果を共有できるようにする
+ * 変換結果はこのバッファが解放される時に一緒に解放する
+ * TextureBufferとしても振る舞うのでGLで描画するVideoSinkはテクスチャをそのまま使える
+ */
+public class CachedI420TextureBuffer implements VideoFrame.TextureBuffer {
+
+	/**
+	 * テクスチャのフレームならラップしたフレームを生成する
+	 * @param frame
+	 * @return テクスチャでなければnull, 戻り値のフレームは呼び出し元で解放すること
+	 */
+	@Nullable
+	public static VideoFrame wrap(@NonNull final VideoFrame frame) {
+		final VideoFrame.Buffer buffer = frame.getBuffer();
+		if (!(buffer instanceof VideoFrame.TextureBuffer)
+			|| (buffer instanceof CachedI420TextureBuffer)) {
+			return null;
+		}
+		buffer.retain();
+		return new VideoFrame(new CachedI420TextureBuffer((VideoFrame.TextureBuffer)buffer),
+			frame.getRotation(), frame.getTimestampNs());
+	}
+
+	/**
+	 * #cropAndScaleの結果
+	 */
+	private static class Scaled {
+		final int cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight;
+		@NonNull
+		final CachedI420TextureBuffer buffer;
+
+		Scaled(final int cropX, final int cropY, final int cropWidth, final int cropHeight,
+			final int scaleWidth, final int scaleHeight,
+			@NonNull final CachedI420TextureBuffer buffer) {
+
+			this.cropX = cropX;
+			this.cropY = cropY;
+			this.cropWidth = cropWidth;
+			this.cropHeight = cropHeight;
+			this.scaleWidth = scaleWidth;
+			this.scaleHeight = scaleHeight;
+			this.buffer = buffer;
+		}
+
+		boolean matches(final int cropX, final int cropY, final int cropWidth, final int cropHeight,
+			final int scaleWidth, final int scaleHeight) {
+
+			return (this.cropX == cropX) && (this.cropY == cropY)
+				&& (this.cropWidth == cropWidth) && (this.cropHeight == cropHeight)
+				&& (this.scaleWidth == scaleWidth) && (this.scaleHeight == scaleHeight);
+		}
+	}
+
+	@NonNull
+	private final VideoFrame.TextureBuffer mBuffer;
+	private final AtomicInteger mRefCount = new AtomicInteger(1);
+	private final Object mSync = new Object();
+	@Nullable
+	private VideoFrame.I420Buffer mI420;
+	/**
+	 * 切り出し位置・サイズ毎の#cropAndScaleの結果, 通常は振り分け先の数以下
+	 */
+	private final List<Scaled> mScaled = new ArrayList<>();
+
+	/**
+	 * コンストラクタ
+	 * @param buffer 参照を引き継ぐ, このバッファが解放される時に解放する
+	 */
+	private CachedI420TextureBuffer(@NonNull final VideoFrame.TextureBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	@Override
+	public Type getType() {
+		return mBuffer.getType();
+	}
+
+	@Override
+	public int getTextureId() {
+		return mBuffer.getTextureId();
+	}
+
+	@Override
+	public Matrix getTransformMatrix() {
+		return mBuffer.getTransformMatrix();
+	}
+
+	@Override
+	public int getWidth() {
+		return mBuffer.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return mBuffer.getHeight();
+	}
+
+	/**
+	 * 最初の呼び出し時のみI420へ変換し, 以降は同じI420Bufferを返す
+	 * 戻り値は呼び出し元で解放すること
+	 */
+	@Override
+	public VideoFrame.I420Buffer toI420() {
+		synchronized (mSync) {
+			if (mI420 == null) {
+				mI420 = mBuffer.toI420();
+			}
+			mI420.retain();
+			return mI420;
+		}
+	}
+
+	/**
+	 * 切り出さずに同じサイズならこのバッファ自体を返す
+	 * 同じ切り出し位置・サイズで呼ばれたことがあればその結果を返すので
+	 * 縮小後のI420への変換結果も共有される
+	 * 初めての切り出し位置・サイズで既にI420へ変換済みなら変換結果から切り出す
+	 * (GPUからの読み戻しをしない), 未変換ならテクスチャのまま切り出して保持する
+	 * 戻り値は呼び出し元で解放すること
+	 */
+	@Override
+	public VideoFrame.Buffer cropAndScale(final int cropX, final int cropY,
+		final int cropWidth, final int cropHeight, final int scaleWidth, final int scaleHeight) {
+
+		if ((cropX == 0) && (cropY == 0)
+			&& (cropWidth == getWidth()) && (cropHeight == getHeight())
+			&& (scaleWidth == cropWidth) && (scaleHeight == cropHeight)) {
+
+			retain();
+			return this;
+		}
+		synchronized (mSync) {
+			for (final Scaled scaled: mScaled) {
+				if (scaled.matches(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight)) {
+					scaled.buffer.retain();
+					return scaled.buffer;
+				}
+			}
+			if (mI420 != null) {
+				return mI420.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+			}
+			final VideoFrame.Buffer buffer
+				= mBuffer.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+			if (!(buffer instanceof VideoFrame.TextureBuffer)) {
+				return buffer;
+			}
+			// 参照はmScaledが保持し, 呼び出し元へは新しい参照を返す
+			final CachedI420TextureBuffer result
+				= new CachedI420TextureBuffer((VideoFrame.TextureBuffer)buffer);
+			mScaled.add(new Scaled(cropX, cropY, cropWidth, cropHeight,
+				scaleWidth, scaleHeight, result));
+			result.retain();
+			return result;
+		}
+	}
+
+	@Override
+	public void retain() {
+		mRefCount.incrementAndGet();
+	}
+
+	@Override
+	public void release() {
+		if (mRefCount.decrementAndGet() == 0) {
+			synchronized (mSync) {
+				if (mI420 != null) {
+					mI420.release();
+					mI420 = null;
+				}
+				for (final Scaled scaled: mScaled) {
+					scaled.buffer.release();
+				}
+				mScaled.clear();
+			}
+			mBuffer.release();
+		}
+	}
+}
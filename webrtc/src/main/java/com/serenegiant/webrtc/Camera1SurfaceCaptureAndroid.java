@@ -16,6 +16,8 @@ import android.util.Log;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.SurfaceTextureHelper;
 
+import javax.annotation.Nullable;
+
 /**
  * 内蔵カメラへCamera APIでアクセスしてSurface/SurfaceTexture経由で
  * WebRTCへ流すためのCameraSurfaceCapture実装
@@ -33,6 +35,18 @@ public class Camera1SurfaceCaptureAndroid extends CameraSurfaceCapture {
 	public Camera1SurfaceCaptureAndroid(final String cameraName) {
 		super(cameraName, null, new Camera1Enumerator(true));
 	}
+
+	/**
+	 * コンストラクタ
+	 * captureListenerがStatisticsListenerも実装していれば映像入力の統計情報も通知する
+	 * @param cameraName
+	 * @param captureListener
+	 */
+	public Camera1SurfaceCaptureAndroid(final String cameraName,
+		@Nullable final CameraCaptureListener captureListener) {
+
+		super(cameraName, captureListener, new Camera1Enumerator(true));
+	}
 	
 	/**
 	 * SurfaceCameraSessionを生成する
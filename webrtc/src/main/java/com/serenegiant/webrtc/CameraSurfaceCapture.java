@@ -155,6 +155,7 @@ public abstract class CameraSurfaceCapture extends SurfaceCaptureAndroid
 					oldSession.stop();
 				});
 				currentSession = null;
+				invalidateFrameConfig();
 				capturerObserver.onCapturerStopped();
 			} else {
 				Logging.d(TAG, "Stop capture: No session open");
@@ -234,6 +235,7 @@ public abstract class CameraSurfaceCapture extends SurfaceCaptureAndroid
 					oldSession.stop();
 				});
 				currentSession = null;
+				invalidateFrameConfig();
 				final int cameraNameIndex = Arrays.asList(deviceNames).indexOf(cameraName);
 				cameraName = deviceNames[(cameraNameIndex + 1) % deviceNames.length];
 				sessionOpening = true;
@@ -286,6 +288,7 @@ public abstract class CameraSurfaceCapture extends SurfaceCaptureAndroid
 				capturerObserver.onCapturerStarted(true);
 				sessionOpening = false;
 				currentSession = session;
+				invalidateFrameConfig();
 				stateLock.notifyAll();
 				if (switchState == CameraSurfaceCapture.SwitchState.IN_PROGRESS) {
 					if (switchEventsHandler != null) {
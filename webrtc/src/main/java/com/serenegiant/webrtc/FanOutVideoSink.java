@@ -0,0 +1,229 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * 1つの映像トラックのフレームを複数のVideoSinkへ振り分けるVideoSink実装
+ * 振り分け先毎に最大フレームレート・最大解像度・処理中なら間引くかどうかを指定できるので
+ * 録画や解析などの重い振り分け先を低フレームレート・低解像度で動かしつつ
+ * 画面表示はそのままのフレームレートで行うことができる
+ * 処理中なら間引く振り分け先は専用のスレッドでフレームを受け取るので
+ * フレームを供給するデコーダーのスレッドが振り分け先の処理を待つことはない
+ * テクスチャのフレームを同じサイズのI420で使う振り分け先が複数あってもGPUからの読み戻しは1回だけ
+ */
+public class FanOutVideoSink implements VideoSink {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = FanOutVideoSink.class.getSimpleName();
+
+	/**
+	 * 振り分け先毎の設定
+	 */
+	public static class Policy {
+		/**
+		 * 制限なし, 全てのフレームを元の解像度で呼び出し元スレッドから引き渡す
+		 */
+		public static final Policy UNLIMITED = new Policy(0, 0, 0, false);
+
+		/**
+		 * 最大フレームレート, 0以下なら制限しない
+		 */
+		public final int maxFramerate;
+		/**
+		 * 最大幅・最大高さ(回転後), 0以下なら制限しない
+		 * アスペクト比を維持して両方に収まるように縮小する
+		 */
+		public final int maxWidth;
+		public final int maxHeight;
+		/**
+		 * true: 専用スレッドで引き渡し, 前のフレームを処理中なら間引く
+		 * false: 呼び出し元スレッドで引き渡す
+		 */
+		public final boolean dropIfBusy;
+
+		public Policy(final int maxFramerate,
+			final int maxWidth, final int maxHeight, final boolean dropIfBusy) {
+
+			this.maxFramerate = maxFramerate;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.dropIfBusy = dropIfBusy;
+		}
+	}
+
+	/**
+	 * 振り分け先
+	 */
+	private static class Consumer {
+		@NonNull
+		final VideoSink sink;
+		@NonNull
+		final Policy policy;
+		final FramePacer pacer = new FramePacer();
+		final AtomicBoolean busy = new AtomicBoolean();
+		final AtomicLong droppedFrames = new AtomicLong();
+		/**
+		 * dropIfBusyの時の専用スレッド
+		 */
+		@Nullable
+		final Handler handler;
+
+		Consumer(@NonNull final VideoSink sink, @NonNull final Policy policy) {
+			this.sink = sink;
+			this.policy = policy;
+			pacer.setFramerate(policy.maxFramerate);
+			handler = policy.dropIfBusy ? HandlerThreadHandler.createHandler(TAG) : null;
+		}
+
+		void onFrame(@NonNull final VideoFrame frame) {
+			if (!pacer.shouldForward(frame.getTimestampNs())) {
+				return;
+			}
+			if (handler == null) {
+				deliver(frame);
+			} else if (busy.compareAndSet(false, true)) {
+				// 縮小も専用スレッドで行う
+				frame.retain();
+				if (!handler.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							deliver(frame);
+						} finally {
+							frame.release();
+							busy.set(false);
+						}
+					}
+				})) {
+					// 解放済み
+					frame.release();
+					busy.set(false);
+				}
+			} else {
+				droppedFrames.incrementAndGet();
+			}
+		}
+
+		void deliver(@NonNull final VideoFrame frame) {
+			final VideoFrame scaled
+				= ScalingVideoSink.scaleToFit(frame, policy.maxWidth, policy.maxHeight);
+			if (scaled == null) {
+				sink.onFrame(frame);
+			} else {
+				try {
+					sink.onFrame(scaled);
+				} finally {
+					scaled.release();
+				}
+			}
+		}
+
+		void release() {
+			if (handler != null) {
+				// 引き渡し待ちのフレームを解放してから終了するように
+				// キューの最後で終了する
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						handler.getLooper().quit();
+					}
+				});
+			}
+		}
+	}
+
+	private final CopyOnWriteArrayList<Consumer> mConsumers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * 振り分け先を追加
+	 * 既に追加されている振り分け先なら設定を置き換える
+	 * @param sink
+	 * @param policy
+	 */
+	public void addSink(@NonNull final VideoSink sink, @NonNull final Policy policy) {
+		if (DEBUG) Log.v(TAG, "addSink:" + sink);
+		removeSink(sink);
+		mConsumers.add(new Consumer(sink, policy));
+	}
+
+	/**
+	 * 振り分け先を削除
+	 * 削除前に送出したフレームはまだ引き渡されることがある
+	 * @param sink
+	 */
+	public void removeSink(@NonNull final VideoSink sink) {
+		for (final Consumer consumer: mConsumers) {
+			if (consumer.sink == sink) {
+				if (DEBUG) Log.v(TAG, "removeSink:" + sink);
+				mConsumers.remove(consumer);
+				consumer.release();
+			}
+		}
+	}
+
+	/**
+	 * 処理中のため間引いたフレーム数を取得
+	 * フレームレート制限で間引いたフレームは含まない
+	 * @param sink
+	 * @return 振り分け先でなければ0
+	 */
+	public long getDroppedFrames(@NonNull final VideoSink sink) {
+		for (final Consumer consumer: mConsumers) {
+			if (consumer.sink == sink) {
+				return consumer.droppedFrames.get();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 全ての振り分け先を削除して専用スレッドを終了する
+	 */
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		for (final Consumer consumer: mConsumers) {
+			consumer.release();
+		}
+		mConsumers.clear();
+	}
+
+	/**
+	 * 振り分け先が複数ある時はテクスチャからI420への変換結果を共有するため
+	 * CachedI420TextureBufferでラップしてから引き渡す
+	 */
+	@Override
+	public void onFrame(final VideoFrame frame) {
+		final VideoFrame shared = mConsumers.size() > 1
+			? CachedI420TextureBuffer.wrap(frame) : null;
+		try {
+			for (final Consumer consumer: mConsumers) {
+				consumer.onFrame(shared != null ? shared : frame);
+			}
+		} finally {
+			if (shared != null) {
+				shared.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+/**
+ * 映像フレームのタイムスタンプを元に指定したフレームレートまで間引くためのヘルパークラス
+ * 次にフレームを通す予定時刻をフレーム間隔ずつ進めるので
+ * 入力フレームレートが指定フレームレートの整数倍でなくても
+ * 間引いた後のフレーム間隔ができるだけ均等になる
+ * #setFramerateは任意のスレッドから, #shouldForwardは映像入力スレッドから呼ぶこと
+ */
+public class FramePacer {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/**
+	 * 指定されたフレーム間隔[ナノ秒], 0なら間引かない
+	 */
+	private volatile long mIntervalNs;
+	// 以下は映像入力スレッドでのみアクセスする
+	private long mCurrentIntervalNs;
+	private long mNextFrameNs;
+	private long mLastTimestampNs;
+
+	/**
+	 * フレームレートを設定, 次のフレームから反映される
+	 * @param framerate 0以下なら間引かない
+	 */
+	public void setFramerate(final int framerate) {
+		mIntervalNs = framerate > 0 ? NANOS_PER_SECOND / framerate : 0;
+	}
+
+	/**
+	 * 次のフレームから間引き状態を初期化する
+	 */
+	public void reset() {
+		mCurrentIntervalNs = 0;
+	}
+
+	/**
+	 * フレームを引き渡すかどうかを取得
+	 * @param timestampNs フレームのタイムスタンプ[ナノ秒]
+	 * @return true: 引き渡す, false: 間引く
+	 */
+	public boolean shouldForward(final long timestampNs) {
+		final long interval = mIntervalNs;
+		if (interval <= 0) {
+			mCurrentIntervalNs = 0;
+			return true;
+		}
+		if ((interval != mCurrentIntervalNs) || (timestampNs < mLastTimestampNs)
+			|| (timestampNs - mNextFrameNs > interval)) {
+			// フレームレート変更時・タイムスタンプが巻き戻った時・
+			// 入力が途切れていた時はこのフレームから数え直す
+			// (追いつくまで連続でフレームを通さないように)
+			mCurrentIntervalNs = interval;
+			mNextFrameNs = timestampNs;
+		}
+		mLastTimestampNs = timestampNs;
+		// タイムスタンプの揺らぎで予定時刻よりわずかに早いフレームも通す
+		if (timestampNs < mNextFrameNs - interval / 4) {
+			return false;
+		}
+		mNextFrameNs += interval;
+		return true;
+	}
+}
@@ -0,0 +1,122 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+/**
+ * 時間間隔・遅延時間の分布を固定サイズのバケットで集計するヒストグラム
+ * 値を追加してもメモリ確保しないので映像フレーム毎に呼び出せる
+ * スレッドセーフではないので同じスレッドから呼び出すこと
+ */
+public class LatencyHistogram {
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private final long bucketWidthNs;
+	/**
+	 * 最後のバケットは範囲外の値用
+	 */
+	private final int[] buckets;
+	private int count;
+	private long maxNs;
+	private double sumMs;
+	private double sumSquaredMs;
+
+	/**
+	 * コンストラクタ
+	 * @param bucketWidthNs バケット幅[ナノ秒]
+	 * @param numBuckets バケット数, bucketWidthNs * numBuckets以上の値は範囲外として集計する
+	 */
+	public LatencyHistogram(final long bucketWidthNs, final int numBuckets) {
+		if ((bucketWidthNs <= 0) || (numBuckets <= 0)) {
+			throw new IllegalArgumentException("invalid histogram size");
+		}
+		this.bucketWidthNs = bucketWidthNs;
+		buckets = new int[numBuckets + 1];
+	}
+
+	/**
+	 * 値を追加, 負の値は0として扱う
+	 * @param valueNs [ナノ秒]
+	 */
+	public void add(final long valueNs) {
+		final long value = valueNs > 0 ? valueNs : 0;
+		final long index = value / bucketWidthNs;
+		buckets[index < buckets.length - 1 ? (int)index : buckets.length - 1]++;
+		count++;
+		if (value > maxNs) {
+			maxNs = value;
+		}
+		final double ms = value / (double)NANOS_PER_MILLI;
+		sumMs += ms;
+		sumSquaredMs += ms * ms;
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		maxNs = 0;
+		sumMs = 0;
+		sumSquaredMs = 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * パーセンタイル値を取得
+	 * バケットの上限値を返すので誤差はバケット幅以内
+	 * @param percentile 0-100
+	 * @return [ミリ秒], 値がなければ0
+	 */
+	public float getPercentileMs(final float percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		final int rank = Math.max(1, (int)Math.ceil(count * percentile / 100.0F));
+		int cumulative = 0;
+		for (int i = 0; i < buckets.length - 1; i++) {
+			cumulative += buckets[i];
+			if (cumulative >= rank) {
+				return Math.min((i + 1) * bucketWidthNs, maxNs) / (float)NANOS_PER_MILLI;
+			}
+		}
+		return getMaxMs();
+	}
+
+	/**
+	 * 平均値を取得
+	 * @return [ミリ秒]
+	 */
+	public float getMeanMs() {
+		return count > 0 ? (float)(sumMs / count) : 0;
+	}
+
+	/**
+	 * 標準偏差を取得, フレーム間隔のヒストグラムならジッターになる
+	 * @return [ミリ秒]
+	 */
+	public float getStdDevMs() {
+		if (count == 0) {
+			return 0;
+		}
+		final double mean = sumMs / count;
+		return (float)Math.sqrt(Math.max(0, sumSquaredMs / count - mean * mean));
+	}
+
+	/**
+	 * 最大値を取得
+	 * @return [ミリ秒]
+	 */
+	public float getMaxMs() {
+		return maxNs / (float)NANOS_PER_MILLI;
+	}
+}
@@ -0,0 +1,114 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.support.annotation.NonNull;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import javax.annotation.Nullable;
+
+/**
+ * 表示先のサイズまで縮小・指定したフレームレートまで間引いてから
+ * 映像を引き渡すVideoSink実装
+ * 小さなビューへ撮影解像度のままの映像を描画しないようにするために使う
+ * 縮小はビューに収まるサイズまでなのでSCALE_ASPECT_FITのビュー専用,
+ * SCALE_ASPECT_FILLのビューでは切り取られた残りが引き伸ばされてぼやける
+ * テクスチャのフレームは描画時にGPUで縮小されるので縮小せずにそのまま引き渡す
+ * #setMaxSize, #setMaxFramerateは任意のスレッドから呼び出せる
+ */
+public class ScalingVideoSink implements VideoSink {
+
+	/**
+	 * 回転後のサイズが最大サイズを超えていればアスペクト比を維持して縮小したフレームを生成する
+	 * テクスチャの場合は変換行列を変更するだけなのでコピーは発生しない
+	 * @param frame
+	 * @param maxWidth 0以下なら制限しない
+	 * @param maxHeight 0以下なら制限しない
+	 * @return 縮小不要ならnull, 戻り値のフレームは呼び出し元で解放すること
+	 */
+	@Nullable
+	static VideoFrame scaleToFit(@NonNull final VideoFrame frame,
+		final int maxWidth, final int maxHeight) {
+
+		final int rotatedWidth = frame.getRotatedWidth();
+		final int rotatedHeight = frame.getRotatedHeight();
+		float scale = 1.0f;
+		if ((maxWidth > 0) && (rotatedWidth > maxWidth)) {
+			scale = Math.min(scale, maxWidth / (float)rotatedWidth);
+		}
+		if ((maxHeight > 0) && (rotatedHeight > maxHeight)) {
+			scale = Math.min(scale, maxHeight / (float)rotatedHeight);
+		}
+		if (scale >= 1.0f) {
+			return null;
+		}
+		final VideoFrame.Buffer buffer = frame.getBuffer();
+		final int width = buffer.getWidth();
+		final int height = buffer.getHeight();
+		// I420の色差成分のために偶数にする
+		final int scaledWidth = Math.max(2, Math.round(width * scale) & ~1);
+		final int scaledHeight = Math.max(2, Math.round(height * scale) & ~1);
+		return new VideoFrame(
+			buffer.cropAndScale(0, 0, width, height, scaledWidth, scaledHeight),
+			frame.getRotation(), frame.getTimestampNs());
+	}
+
+	@NonNull
+	private final VideoSink mTarget;
+	private final FramePacer mPacer = new FramePacer();
+	private volatile int mMaxWidth;
+	private volatile int mMaxHeight;
+
+	/**
+	 * コンストラクタ
+	 * @param target 映像の引き渡し先
+	 */
+	public ScalingVideoSink(@NonNull final VideoSink target) {
+		mTarget = target;
+	}
+
+	/**
+	 * 最大サイズを設定, 通常は表示先のビューのサイズ
+	 * @param maxWidth 0以下なら制限しない
+	 * @param maxHeight 0以下なら制限しない
+	 */
+	public void setMaxSize(final int maxWidth, final int maxHeight) {
+		mMaxWidth = maxWidth;
+		mMaxHeight = maxHeight;
+	}
+
+	/**
+	 * 最大フレームレートを設定
+	 * @param framerate 0以下なら制限しない
+	 */
+	public void setMaxFramerate(final int framerate) {
+		mPacer.setFramerate(framerate);
+	}
+
+	@Override
+	public void onFrame(final VideoFrame frame) {
+		if (!mPacer.shouldForward(frame.getTimestampNs())) {
+			return;
+		}
+		final VideoFrame scaled = frame.getBuffer() instanceof VideoFrame.TextureBuffer
+			? null : scaleToFit(frame, mMaxWidth, mMaxHeight);
+		if (scaled == null) {
+			mTarget.onFrame(frame);
+		} else {
+			try {
+				mTarget.onFrame(scaled);
+			} finally {
+				scaled.release();
+			}
+		}
+	}
+}
@@ -10,6 +10,7 @@ package com.serenegiant.webrtc;
  */
 
 import android.content.Context;
+import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.os.Handler;
 import android.support.annotation.NonNull;
@@ -42,6 +43,11 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 
 	private static final boolean DEBUG = false; // set false on production
 	private static final String TAG = SurfaceCaptureAndroid.class.getSimpleName();
+	/**
+	 * 左右反転・回転角を再取得する間隔[ナノ秒]
+	 * 端末の回転は毎フレーム確認しなくても追従できる
+	 */
+	private static final long FRAME_CONFIG_INTERVAL_NS = 250 * 1000000L;
 
 	protected final Object stateLock = new Object();
 	@NonNull
@@ -65,6 +71,20 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 	private Statistics mStatistics;
 	private boolean firstFrameObserved;
 	private volatile CaptureState state;
+	// 以下はキャプチャスレッドでのみアクセスするフレーム設定のキャッシュ
+	private volatile boolean mFrameConfigInvalid = true;
+	private long mFrameConfigTimestampNs;
+	private boolean mMirror;
+	private int mFrameRotation;
+	/**
+	 * mMirrorに対応するテクスチャ変換行列, 恒等変換ならnull
+	 */
+	@Nullable
+	private Matrix mTransformMatrix;
+	/**
+	 * 要求されたフレームレートを超えるフレームを間引くためのFramePacer
+	 */
+	private final FramePacer mFramePacer = new FramePacer();
 
 	public SurfaceCaptureAndroid(@NonNull final CaptureListener captureListener) {
 		this.captureListener = captureListener;
@@ -104,7 +124,10 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mFramePacer.setFramerate(framerate);
+			mFramePacer.reset();
 			firstFrameObserved = false;
+			mFrameConfigInvalid = true;
 			state = CaptureState.RUNNING;
 			capturerObserver.onCapturerStarted(true);
 			surfaceHelper.startListening(mVideoSink);
@@ -145,6 +168,7 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 			this.width = width;
 			this.height = height;
 			this.framerate = framerate;
+			mFramePacer.setFramerate(framerate);
 			resize(width, height);
 			setSurface(false);
 		}
@@ -207,19 +231,46 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 			++numCapturedFrames;
 			if (DEBUG && ((numCapturedFrames % 100) == 0)) Log.v(TAG, "onFrame:" + numCapturedFrames);
 
-			final VideoFrame modifiedFrame = new VideoFrame(
-				SurfaceVideoCapture.createTextureBufferWithModifiedTransformMatrix(
-					(TextureBufferImpl)frame.getBuffer(), isMirror(), 0),
-				getFrameRotation(), frame.getTimestampNs());
-			capturerObserver.onFrameCaptured(modifiedFrame);
-			modifiedFrame.release();
+			final long arrivalNs = System.nanoTime();
+			final long timestampNs = frame.getTimestampNs();
+			// 映像入力自体は続いているので間引くフレームも統計にはカウントする
+			addStatisticsFrame(timestampNs, arrivalNs);
+			if (!mFramePacer.shouldForward(timestampNs)) {
+				// 要求されたフレームレートを超えるフレームは間引く
+				return;
+			}
+			final long handoffNs;
+			if (mFrameConfigInvalid
+				|| (timestampNs - mFrameConfigTimestampNs >= FRAME_CONFIG_INTERVAL_NS)) {
+				updateFrameConfig(timestampNs);
+			}
+			if ((mTransformMatrix == null) && (mFrameRotation == frame.getRotation())) {
+				// 変換不要なので受け取ったフレームをそのまま引き渡す
+				handoffNs = System.nanoTime();
+				capturerObserver.onFrameCaptured(frame);
+			} else {
+				final VideoFrame.Buffer buffer;
+				if (mTransformMatrix != null) {
+					final TextureBufferImpl textureBuffer = (TextureBufferImpl)frame.getBuffer();
+					buffer = textureBuffer.applyTransformMatrix(mTransformMatrix,
+						textureBuffer.getWidth(), textureBuffer.getHeight());
+				} else {
+					// 回転角だけが異なる時はバッファを共有する
+					buffer = frame.getBuffer();
+					buffer.retain();
+				}
+				final VideoFrame modifiedFrame = new VideoFrame(buffer, mFrameRotation, timestampNs);
+				handoffNs = System.nanoTime();
+				capturerObserver.onFrameCaptured(modifiedFrame);
+				modifiedFrame.release();
+			}
 			if (!firstFrameObserved) {
 				captureListener.onFirstFrameAvailable();
 				firstFrameObserved = true;
 			}
 			try {
 				if (mStatistics != null) {
-					mStatistics.addFrame();
+					mStatistics.addDeliveredFrame(arrivalNs, handoffNs, System.nanoTime());
 				}
 			} catch (final Exception e) {
 				// ignore
@@ -227,10 +278,47 @@ public class SurfaceCaptureAndroid implements SurfaceVideoCapture {
 		}
 	};
 
+	/**
+	 * フレームが途切れていないかの確認・統計情報計算用にフレームを追加
+	 */
+	private void addStatisticsFrame(final long timestampNs, final long arrivalNs) {
+		try {
+			if (mStatistics != null) {
+				mStatistics.addFrame(timestampNs, arrivalNs);
+			}
+		} catch (final Exception e) {
+			// ignore
+		}
+	}
+
 	public long getNumCapturedFrames() {
 		return numCapturedFrames;
 	}
 
+	/**
+	 * 左右反転・回転角を取得し直してテクスチャ変換行列を更新する
+	 * キャプチャスレッド上で呼ばれる
+	 * @param timestampNs
+	 */
+	private void updateFrameConfig(final long timestampNs) {
+		mFrameConfigInvalid = false;
+		mFrameConfigTimestampNs = timestampNs;
+		mFrameRotation = getFrameRotation();
+		final boolean mirror = isMirror();
+		if (mirror != mMirror) {
+			mMirror = mirror;
+			mTransformMatrix = SurfaceVideoCapture.createTransformMatrix(mirror, 0);
+		}
+	}
+
+	/**
+	 * 左右反転・回転角が変わった時に呼び出すと次のフレームから反映される
+	 * 呼び出さなくてもFRAME_CONFIG_INTERVAL_NS毎に取得し直す
+	 */
+	protected void invalidateFrameConfig() {
+		mFrameConfigInvalid = true;
+	}
+
 	/**
 	 * 映像入力用のSurfaceを取得
 	 * #getInputSurfaceTextureとは排他使用のこと
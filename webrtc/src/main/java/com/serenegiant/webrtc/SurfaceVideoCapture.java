@@ -20,6 +20,8 @@ import org.webrtc.TextureBufferImpl;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFrame;
 
+import java.util.Locale;
+
 import javax.annotation.Nullable;
 
 /**
@@ -78,26 +80,50 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 	public void removeSurface(final int id);
 
 	/**
-	 * WebRTCへ流した映像の統計情報(フレームレート)計算用ヘルパークラス
+	 * WebRTCへ流した映像の統計情報(フレームレート・遅延時間)計算用ヘルパークラス
+	 * 映像入力が途切れていないかを2秒毎に確認し, CaptureListenerが
+	 * StatisticsListenerであれば同じ2秒間の統計情報を通知する
+	 * 映像入力スレッド上でのみ呼び出すこと
 	 */
 	public static class Statistics {
 		private static final String TAG = Statistics.class.getSimpleName();
+		private static final long PERIOD_MS = 2000L;
+		// ヒストグラムは0.5ミリ秒刻みで200ミリ秒まで
+		private static final long BUCKET_WIDTH_NS = 500000L;
+		private static final int NUM_BUCKETS = 400;
 
 		@NonNull
 		private final SurfaceTextureHelper surfaceTextureHelper;
 		@NonNull
 		private final CaptureListener captureListener;
+		@Nullable
+		private final StatisticsListener statisticsListener;
 		private int frameCount;
+		private int deliveredFrameCount;
 		private int freezePeriodCount;
+		private long lastTimestampNs;
+		private long lastArrivalNs;
+		private final LatencyHistogram cameraIntervals
+			= new LatencyHistogram(BUCKET_WIDTH_NS, NUM_BUCKETS);
+		private final LatencyHistogram arrivalIntervals
+			= new LatencyHistogram(BUCKET_WIDTH_NS, NUM_BUCKETS);
+		private final LatencyHistogram arrivalLatencies
+			= new LatencyHistogram(BUCKET_WIDTH_NS, NUM_BUCKETS);
+		private final LatencyHistogram handoffLatencies
+			= new LatencyHistogram(BUCKET_WIDTH_NS, NUM_BUCKETS);
+		private final LatencyHistogram deliveryDurations
+			= new LatencyHistogram(BUCKET_WIDTH_NS, NUM_BUCKETS);
 		
 		public Statistics(@NonNull final SurfaceTextureHelper surfaceTextureHelper,
 			@NonNull final CaptureListener captureListener) {
 
 			this.surfaceTextureHelper = surfaceTextureHelper;
 			this.captureListener = captureListener;
+			statisticsListener = captureListener instanceof StatisticsListener
+				? (StatisticsListener)captureListener : null;
 			frameCount = 0;
 			freezePeriodCount = 0;
-			surfaceTextureHelper.getHandler().postDelayed(cameraObserver, 2000L);
+			surfaceTextureHelper.getHandler().postDelayed(cameraObserver, PERIOD_MS);
 		}
 		
 		private void checkThread() {
@@ -110,6 +136,37 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 			checkThread();
 			++frameCount;
 		}
+
+		/**
+		 * 映像入力スレッドへ届いたフレームを追加, 間引いたフレームも含める
+		 * @param timestampNs フレームのタイムスタンプ[ナノ秒]
+		 * @param arrivalNs フレームが届いた時刻(System#nanoTime)[ナノ秒]
+		 */
+		public void addFrame(final long timestampNs, final long arrivalNs) {
+			addFrame();
+			if (lastArrivalNs != 0) {
+				cameraIntervals.add(timestampNs - lastTimestampNs);
+				arrivalIntervals.add(arrivalNs - lastArrivalNs);
+			}
+			lastTimestampNs = timestampNs;
+			lastArrivalNs = arrivalNs;
+			arrivalLatencies.add(arrivalNs - timestampNs);
+		}
+
+		/**
+		 * CapturerObserverへ引き渡したフレームを追加
+		 * @param arrivalNs フレームが届いた時刻(System#nanoTime)[ナノ秒]
+		 * @param handoffNs CapturerObserverへ引き渡した時刻[ナノ秒]
+		 * @param deliveredNs CapturerObserverから戻った時刻[ナノ秒]
+		 */
+		public void addDeliveredFrame(final long arrivalNs,
+			final long handoffNs, final long deliveredNs) {
+
+			checkThread();
+			++deliveredFrameCount;
+			handoffLatencies.add(handoffNs - arrivalNs);
+			deliveryDurations.add(deliveredNs - handoffNs);
+		}
 		
 		public void release() {
 			surfaceTextureHelper.getHandler().removeCallbacks(cameraObserver);
@@ -117,11 +174,15 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 
 		private final Runnable cameraObserver = new Runnable() {
 			public void run() {
-				final int cameraFps = Math.round((float) frameCount * 1000.0F / 2000.0F);
+				final int cameraFps = Math.round((float) frameCount * 1000.0F / PERIOD_MS);
 				Logging.d(TAG, "Camera fps: " + cameraFps + ".");
+				if (statisticsListener != null) {
+					statisticsListener.onCaptureStatistics(createCaptureStatistics());
+				}
+				resetHistograms();
 				if (frameCount == 0) {
 					++freezePeriodCount;
-					if (2000 * freezePeriodCount >= 4000) {
+					if (PERIOD_MS * freezePeriodCount >= 4000) {
 						Logging.e(TAG, "Camera freezed.");
 						if (surfaceTextureHelper.isTextureInUse()) {
 							captureListener.onFailure("Camera failure. Client must return video buffers.");
@@ -136,9 +197,118 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 				}
 				
 				frameCount = 0;
-				surfaceTextureHelper.getHandler().postDelayed(this, 2000L);
+				surfaceTextureHelper.getHandler().postDelayed(this, PERIOD_MS);
 			}
 		};
+
+		private CaptureStatistics createCaptureStatistics() {
+			return new CaptureStatistics(
+				frameCount * 1000.0F / PERIOD_MS,
+				deliveredFrameCount * 1000.0F / PERIOD_MS,
+				cameraIntervals.getMeanMs(), cameraIntervals.getStdDevMs(),
+				cameraIntervals.getMaxMs(),
+				arrivalIntervals.getStdDevMs(), arrivalIntervals.getMaxMs(),
+				arrivalLatencies.getPercentileMs(50), arrivalLatencies.getPercentileMs(95),
+				arrivalLatencies.getPercentileMs(99), arrivalLatencies.getMaxMs(),
+				handoffLatencies.getPercentileMs(50), handoffLatencies.getPercentileMs(95),
+				deliveryDurations.getPercentileMs(50), deliveryDurations.getPercentileMs(95),
+				deliveryDurations.getMaxMs());
+		}
+
+		private void resetHistograms() {
+			deliveredFrameCount = 0;
+			cameraIntervals.reset();
+			arrivalIntervals.reset();
+			arrivalLatencies.reset();
+			handoffLatencies.reset();
+			deliveryDurations.reset();
+		}
+	}
+
+	/**
+	 * 2秒間の映像入力の統計情報
+	 * 時間は全てミリ秒
+	 * カメラ側で映像が滞った時はcameraIntervalMaxMsが大きくなり,
+	 * 映像入力スレッドが混雑している時はarrivalLatency*が大きくなる
+	 */
+	public static class CaptureStatistics {
+		/**
+		 * 映像入力スレッドへ届いたフレームレート(間引いたフレームを含む)
+		 */
+		public final float inputFps;
+		/**
+		 * WebRTCへ引き渡したフレームレート
+		 */
+		public final float deliveredFps;
+		/**
+		 * フレームのタイムスタンプの間隔の平均値・標準偏差(ジッター)・最大値
+		 */
+		public final float cameraIntervalMeanMs;
+		public final float cameraJitterMs;
+		public final float cameraIntervalMaxMs;
+		/**
+		 * フレームが映像入力スレッドへ届いた間隔の標準偏差(ジッター)・最大値
+		 */
+		public final float arrivalJitterMs;
+		public final float arrivalIntervalMaxMs;
+		/**
+		 * フレームのタイムスタンプから映像入力スレッドへ届くまでの時間のパーセンタイル値・最大値
+		 */
+		public final float arrivalLatencyP50Ms;
+		public final float arrivalLatencyP95Ms;
+		public final float arrivalLatencyP99Ms;
+		public final float arrivalLatencyMaxMs;
+		/**
+		 * 映像入力スレッドへ届いてからCapturerObserverへ引き渡すまでの時間のパーセンタイル値
+		 */
+		public final float handoffLatencyP50Ms;
+		public final float handoffLatencyP95Ms;
+		/**
+		 * CapturerObserver#onFrameCapturedの処理時間のパーセンタイル値・最大値
+		 */
+		public final float deliveryP50Ms;
+		public final float deliveryP95Ms;
+		public final float deliveryMaxMs;
+
+		public CaptureStatistics(final float inputFps, final float deliveredFps,
+			final float cameraIntervalMeanMs, final float cameraJitterMs,
+			final float cameraIntervalMaxMs,
+			final float arrivalJitterMs, final float arrivalIntervalMaxMs,
+			final float arrivalLatencyP50Ms, final float arrivalLatencyP95Ms,
+			final float arrivalLatencyP99Ms, final float arrivalLatencyMaxMs,
+			final float handoffLatencyP50Ms, final float handoffLatencyP95Ms,
+			final float deliveryP50Ms, final float deliveryP95Ms, final float deliveryMaxMs) {
+
+			this.inputFps = inputFps;
+			this.deliveredFps = deliveredFps;
+			this.cameraIntervalMeanMs = cameraIntervalMeanMs;
+			this.cameraJitterMs = cameraJitterMs;
+			this.cameraIntervalMaxMs = cameraIntervalMaxMs;
+			this.arrivalJitterMs = arrivalJitterMs;
+			this.arrivalIntervalMaxMs = arrivalIntervalMaxMs;
+			this.arrivalLatencyP50Ms = arrivalLatencyP50Ms;
+			this.arrivalLatencyP95Ms = arrivalLatencyP95Ms;
+			this.arrivalLatencyP99Ms = arrivalLatencyP99Ms;
+			this.arrivalLatencyMaxMs = arrivalLatencyMaxMs;
+			this.handoffLatencyP50Ms = handoffLatencyP50Ms;
+			this.handoffLatencyP95Ms = handoffLatencyP95Ms;
+			this.deliveryP50Ms = deliveryP50Ms;
+			this.deliveryP95Ms = deliveryP95Ms;
+			this.deliveryMaxMs = deliveryMaxMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"fps:%.1f/%.1f,interval:%.1f±%.1f(max %.1f),arrival jitter:%.1f(max %.1f),"
+				+ "latency p50/p95/p99/max:%.1f/%.1f/%.1f/%.1f,"
+				+ "handoff p50/p95:%.1f/%.1f,delivery p50/p95/max:%.1f/%.1f/%.1f",
+				deliveredFps, inputFps, cameraIntervalMeanMs, cameraJitterMs, cameraIntervalMaxMs,
+				arrivalJitterMs, arrivalIntervalMaxMs,
+				arrivalLatencyP50Ms, arrivalLatencyP95Ms, arrivalLatencyP99Ms, arrivalLatencyMaxMs,
+				handoffLatencyP50Ms, handoffLatencyP95Ms,
+				deliveryP50Ms, deliveryP95Ms, deliveryMaxMs);
+		}
 	}
 	
 	/**
@@ -149,9 +319,37 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 		public void onFirstFrameAvailable();
 	}
 
+	/**
+	 * 映像入力の統計情報も受け取るためのCaptureListener
+	 * 映像入力スレッドから2秒毎に呼び出される
+	 */
+	public interface StatisticsListener extends CaptureListener {
+		public void onCaptureStatistics(@NonNull final CaptureStatistics statistics);
+	}
+
 	static VideoFrame.TextureBuffer createTextureBufferWithModifiedTransformMatrix(
 		@NonNull final TextureBufferImpl buffer, final boolean mirror, final int rotation) {
 
+		Matrix transformMatrix = createTransformMatrix(mirror, rotation);
+		if (transformMatrix == null) {
+			transformMatrix = new Matrix();
+		}
+		return buffer.applyTransformMatrix(transformMatrix, buffer.getWidth(), buffer.getHeight());
+	}
+
+	/**
+	 * 左右反転・回転用のテクスチャ変換行列を生成する
+	 * TextureBufferImpl#applyTransformMatrixは引数の行列を変更しないので
+	 * 生成した行列は同じ設定のフレーム間で使い回せる
+	 * @param mirror
+	 * @param rotation
+	 * @return 変換不要(恒等変換)ならnull
+	 */
+	@Nullable
+	static Matrix createTransformMatrix(final boolean mirror, final int rotation) {
+		if (!mirror && ((rotation % 360) == 0)) {
+			return null;
+		}
 		final Matrix transformMatrix = new Matrix();
 		transformMatrix.preTranslate(0.5F, 0.5F);
 		if (mirror) {
@@ -160,6 +358,6 @@ public interface SurfaceVideoCapture extends VideoCapturer {
 
 		transformMatrix.preRotate((float)rotation);
 		transformMatrix.preTranslate(-0.5F, -0.5F);
-		return buffer.applyTransformMatrix(transformMatrix, buffer.getWidth(), buffer.getHeight());
+		return transformMatrix;
 	}
 }
@@ -0,0 +1,506 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import javax.annotation.Nullable;
+
+/**
+ * カメラ等の映像入力なしで映像を生成してWebRTCへ流すためのSurfaceVideoCapture実装
+ * エミュレータやカメラのない端末でのエンコーダー・映像処理の性能測定や
+ * 通話全体の動作確認用
+ *
+ * テクスチャモードでは映像入力用Surfaceへ描画するのでカメラと同じく
+ * IRendererHolder・SurfaceTextureHelperを経由してテクスチャとして引き渡す
+ * I420モードではI420形式のバッファを生成して直接CapturerObserverへ引き渡す
+ * I420バッファは使い回すのでフレーム毎のメモリ確保はしない
+ */
+public class SyntheticSurfaceCapture extends SurfaceCaptureAndroid {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = SyntheticSurfaceCapture.class.getSimpleName();
+
+	/**
+	 * 生成する映像の種類
+	 */
+	public enum Pattern {
+		/**
+		 * カラーバー, 動きがなければ最もエンコードしやすい
+		 */
+		COLOR_BARS,
+		/**
+		 * 縦横のグラデーション
+		 */
+		GRADIENT,
+		/**
+		 * 市松模様, 高周波成分が多い
+		 */
+		CHECKERBOARD,
+		/**
+		 * フレーム毎に異なるノイズ, 最もエンコードしにくい
+		 */
+		NOISE,
+	}
+
+	// カラーバーの色(ARGB)
+	private static final int[] BAR_COLORS = {
+		Color.WHITE, Color.YELLOW, Color.CYAN, Color.GREEN,
+		Color.MAGENTA, Color.RED, Color.BLUE, Color.BLACK,
+	};
+	private static final int CHECKER_SIZE = 16;
+	/**
+	 * I420バッファの最大プール数
+	 */
+	private static final int MAX_POOLED_BUFFERS = 4;
+
+	@NonNull
+	private final Pattern mPattern;
+	private final boolean mMotion;
+	private final boolean mUseTexture;
+	@Nullable
+	private volatile Handler mGeneratorHandler;
+	// 以下は映像生成スレッドでのみアクセスする
+	private int mWidth;
+	private int mHeight;
+	private int mFramerate;
+	private long mStartUptimeMs;
+	private long mFrameIndex;
+	private int mNoiseSeed = 0x12345678;
+	@Nullable
+	private byte[] mBasePlanes;
+	@Nullable
+	private Paint mPaint;
+	/**
+	 * 再利用するI420バッファ, WebRTCが解放したバッファを戻すので排他制御する
+	 */
+	private final ArrayDeque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+	private int mPoolBufferSize;
+
+	/**
+	 * コンストラクタ
+	 * @param captureListener
+	 * @param pattern 生成する映像の種類
+	 * @param motion 移動する矩形を描画するかどうか
+	 * @param useTexture true: テクスチャとして引き渡す, false: I420バッファとして引き渡す
+	 */
+	public SyntheticSurfaceCapture(@NonNull final CaptureListener captureListener,
+		@NonNull final Pattern pattern, final boolean motion, final boolean useTexture) {
+
+		super(captureListener);
+		mPattern = pattern;
+		mMotion = motion;
+		mUseTexture = useTexture;
+	}
+
+	@Override
+	public void startCapture(final int width, final int height, final int framerate) {
+		if (DEBUG) Log.v(TAG, "startCapture:");
+		if (mUseTexture) {
+			super.startCapture(width, height, framerate);
+		} else {
+			synchronized (stateLock) {
+				checkNotDisposed();
+				if (capturerObserver == null) {
+					throw new IllegalStateException("not initialized");
+				}
+				capturerObserver.onCapturerStarted(true);
+			}
+		}
+		synchronized (stateLock) {
+			if (mGeneratorHandler == null) {
+				mGeneratorHandler = HandlerThreadHandler.createHandler(TAG);
+			}
+			final Handler handler = mGeneratorHandler;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					setFormat(width, height, framerate);
+					// stopCapture無しで再度呼ばれた時に生成タスクが2重にならないように
+					handler.removeCallbacks(mGenerateTask);
+					handler.post(mGenerateTask);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void stopCapture() {
+		if (DEBUG) Log.v(TAG, "stopCapture:");
+		final Handler handler;
+		synchronized (stateLock) {
+			handler = mGeneratorHandler;
+			mGeneratorHandler = null;
+		}
+		if (handler != null) {
+			// 描画中のフレームが終わるのを待つ
+			handler.removeCallbacksAndMessages(null);
+			handler.getLooper().quit();
+			try {
+				handler.getLooper().getThread().join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (mUseTexture) {
+			super.stopCapture();
+		} else {
+			synchronized (stateLock) {
+				final CapturerObserver observer = capturerObserver;
+				if ((handler != null) && (observer != null)) {
+					observer.onCapturerStopped();
+				}
+			}
+		}
+		synchronized (mBufferPool) {
+			mBufferPool.clear();
+		}
+	}
+
+	@Override
+	public void changeCaptureFormat(final int width, final int height, final int framerate) {
+		if (DEBUG) Log.v(TAG, "changeCaptureFormat:");
+		if (mUseTexture) {
+			super.changeCaptureFormat(width, height, framerate);
+		}
+		synchronized (stateLock) {
+			if (mGeneratorHandler != null) {
+				mGeneratorHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						setFormat(width, height, framerate);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * 映像生成スレッド上で呼ばれる
+	 */
+	private void setFormat(final int width, final int height, final int framerate) {
+		mWidth = width;
+		mHeight = height;
+		mFramerate = framerate > 0 ? framerate : 30;
+		mStartUptimeMs = SystemClock.uptimeMillis();
+		mFrameIndex = 0;
+		mBasePlanes = null;
+	}
+
+	/**
+	 * フレームレートに合わせて映像を生成するRunnable
+	 * 次のフレームの予定時刻を開始時刻から計算するので誤差が蓄積しない
+	 */
+	private final Runnable mGenerateTask = new Runnable() {
+		@Override
+		public void run() {
+			final Handler handler = mGeneratorHandler;
+			if ((handler == null) || (mWidth <= 0) || (mHeight <= 0)) {
+				return;
+			}
+			try {
+				if (mUseTexture) {
+					drawFrame();
+				} else {
+					generateI420Frame(System.nanoTime());
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			mFrameIndex++;
+			long next = mStartUptimeMs + mFrameIndex * 1000L / mFramerate;
+			final long now = SystemClock.uptimeMillis();
+			if (next < now) {
+				// 生成が間に合わない時はフレームを飛ばす
+				mFrameIndex = (now - mStartUptimeMs) * mFramerate / 1000L + 1;
+				next = mStartUptimeMs + mFrameIndex * 1000L / mFramerate;
+			}
+			handler.postAtTime(this, next);
+		}
+	};
+
+	/**
+	 * 移動する矩形の位置を取得
+	 * @param size 矩形のサイズ
+	 * @return 矩形の左上のx座標
+	 */
+	private int getBoxX(final int size) {
+		final int range = mWidth - size;
+		if (range <= 0) {
+			return 0;
+		}
+		// 1秒で画面幅の半分移動して端で折り返す
+		final long pos = mFrameIndex * range / Math.max(1, mFramerate) / 2 % (range * 2L);
+		return (int)(pos < range ? pos : range * 2L - pos);
+	}
+
+	private int getBoxY(final int size) {
+		final int range = mHeight - size;
+		if (range <= 0) {
+			return 0;
+		}
+		final long pos = mFrameIndex * range / Math.max(1, mFramerate) / 3 % (range * 2L);
+		return (int)(pos < range ? pos : range * 2L - pos);
+	}
+
+//================================================================================
+	/**
+	 * テクスチャモードで映像入力用Surfaceへ描画する
+	 */
+	private void drawFrame() {
+		final Surface surface = getInputSurface();
+		if ((surface == null) || !surface.isValid()) {
+			return;
+		}
+		final Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+			? surface.lockHardwareCanvas() : surface.lockCanvas(null);
+		try {
+			if (mPaint == null) {
+				mPaint = new Paint();
+			}
+			final Paint paint = mPaint;
+			final int width = canvas.getWidth();
+			final int height = canvas.getHeight();
+			switch (mPattern) {
+			case GRADIENT:
+				for (int x = 0; x < width; x += 8) {
+					final int level = x * 255 / width;
+					paint.setColor(Color.rgb(level, 255 - level, 128));
+					canvas.drawRect(x, 0, x + 8, height, paint);
+				}
+				break;
+			case CHECKERBOARD:
+				canvas.drawColor(Color.BLACK);
+				paint.setColor(Color.WHITE);
+				for (int y = 0; y < height; y += CHECKER_SIZE) {
+					for (int x = ((y / CHECKER_SIZE) & 1) * CHECKER_SIZE; x < width;
+						x += CHECKER_SIZE * 2) {
+
+						canvas.drawRect(x, y, x + CHECKER_SIZE, y + CHECKER_SIZE, paint);
+					}
+				}
+				break;
+			case NOISE:
+				for (int y = 0; y < height; y += 4) {
+					for (int x = 0; x < width; x += 4) {
+						paint.setColor(0xff000000 | nextNoise());
+						canvas.drawRect(x, y, x + 4, y + 4, paint);
+					}
+				}
+				break;
+			case COLOR_BARS:
+			default:
+				for (int i = 0; i < BAR_COLORS.length; i++) {
+					paint.setColor(BAR_COLORS[i]);
+					canvas.drawRect(width * i / BAR_COLORS.length, 0,
+						width * (i + 1) / BAR_COLORS.length, height, paint);
+				}
+				break;
+			}
+			if (mMotion) {
+				final int size = Math.min(mWidth, mHeight) / 4;
+				final int x = getBoxX(size) * width / mWidth;
+				final int y = getBoxY(size) * height / mHeight;
+				paint.setColor(Color.DKGRAY);
+				canvas.drawRect(x, y, x + size * width / mWidth, y + size * height / mHeight, paint);
+			}
+		} finally {
+			surface.unlockCanvasAndPost(canvas);
+		}
+	}
+
+//================================================================================
+	/**
+	 * I420モードで映像を生成してCapturerObserverへ引き渡す
+	 * @param timestampNs
+	 */
+	private void generateI420Frame(final long timestampNs) {
+		final CapturerObserver observer = capturerObserver;
+		if (observer == null) {
+			return;
+		}
+		final int width = mWidth;
+		final int height = mHeight;
+		final int chromaWidth = (width + 1) / 2;
+		final int chromaHeight = (height + 1) / 2;
+		final int sizeY = width * height;
+		final int sizeUV = chromaWidth * chromaHeight;
+		final ByteBuffer buffer = obtainBuffer(sizeY + sizeUV * 2);
+		// 動きのない部分は生成済みの画像をコピーする
+		if (mPattern == Pattern.NOISE) {
+			fillNoise(buffer, sizeY + sizeUV * 2);
+		} else {
+			if (mBasePlanes == null) {
+				mBasePlanes = createBasePlanes(width, height);
+			}
+			buffer.clear();
+			buffer.put(mBasePlanes);
+		}
+		if (mMotion) {
+			final int size = Math.min(width, height) / 4;
+			fillRect(buffer, 0, width, getBoxX(size), getBoxY(size), size, size, (byte)64);
+		}
+		final ByteBuffer dataY = slice(buffer, 0, sizeY);
+		final ByteBuffer dataU = slice(buffer, sizeY, sizeUV);
+		final ByteBuffer dataV = slice(buffer, sizeY + sizeUV, sizeUV);
+		final VideoFrame.I420Buffer i420Buffer = JavaI420Buffer.wrap(width, height,
+			dataY, width, dataU, chromaWidth, dataV, chromaWidth,
+			new Runnable() {
+				@Override
+				public void run() {
+					recycleBuffer(buffer);
+				}
+			});
+		final VideoFrame frame = new VideoFrame(i420Buffer, 0, timestampNs);
+		try {
+			observer.onFrameCaptured(frame);
+		} finally {
+			frame.release();
+		}
+	}
+
+	private ByteBuffer obtainBuffer(final int size) {
+		synchronized (mBufferPool) {
+			if (mPoolBufferSize != size) {
+				mBufferPool.clear();
+				mPoolBufferSize = size;
+			}
+			final ByteBuffer buffer = mBufferPool.pollFirst();
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	private void recycleBuffer(@NonNull final ByteBuffer buffer) {
+		synchronized (mBufferPool) {
+			if ((buffer.capacity() == mPoolBufferSize)
+				&& (mBufferPool.size() < MAX_POOLED_BUFFERS)) {
+
+				mBufferPool.addLast(buffer);
+			}
+		}
+	}
+
+	private static ByteBuffer slice(@NonNull final ByteBuffer buffer,
+		final int offset, final int length) {
+
+		final ByteBuffer result = buffer.duplicate();
+		result.position(offset);
+		result.limit(offset + length);
+		return result.slice();
+	}
+
+	/**
+	 * 動きのない部分のI420画像を生成
+	 */
+	private byte[] createBasePlanes(final int width, final int height) {
+		final int chromaWidth = (width + 1) / 2;
+		final int chromaHeight = (height + 1) / 2;
+		final int sizeY = width * height;
+		final int sizeUV = chromaWidth * chromaHeight;
+		final byte[] planes = new byte[sizeY + sizeUV * 2];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				planes[y * width + x] = (byte)rgbToY(getPatternColor(x, y, width, height));
+			}
+		}
+		for (int y = 0; y < chromaHeight; y++) {
+			for (int x = 0; x < chromaWidth; x++) {
+				final int color = getPatternColor(x * 2, y * 2, width, height);
+				planes[sizeY + y * chromaWidth + x] = (byte)rgbToU(color);
+				planes[sizeY + sizeUV + y * chromaWidth + x] = (byte)rgbToV(color);
+			}
+		}
+		return planes;
+	}
+
+	private int getPatternColor(final int x, final int y, final int width, final int height) {
+		switch (mPattern) {
+		case GRADIENT:
+			final int level = x * 255 / width;
+			return Color.rgb(level, 255 - level, y * 255 / height);
+		case CHECKERBOARD:
+			return (((x / CHECKER_SIZE) + (y / CHECKER_SIZE)) & 1) == 0
+				? Color.WHITE : Color.BLACK;
+		case COLOR_BARS:
+		default:
+			return BAR_COLORS[x * BAR_COLORS.length / width];
+		}
+	}
+
+	// BT.601 limited range
+	private static int rgbToY(final int color) {
+		return ((66 * Color.red(color) + 129 * Color.green(color)
+			+ 25 * Color.blue(color) + 128) >> 8) + 16;
+	}
+
+	private static int rgbToU(final int color) {
+		return ((-38 * Color.red(color) - 74 * Color.green(color)
+			+ 112 * Color.blue(color) + 128) >> 8) + 128;
+	}
+
+	private static int rgbToV(final int color) {
+		return ((112 * Color.red(color) - 94 * Color.green(color)
+			- 18 * Color.blue(color) + 128) >> 8) + 128;
+	}
+
+	private static void fillRect(@NonNull final ByteBuffer buffer, final int offset,
+		final int stride, final int left, final int top, final int width, final int height,
+		final byte value) {
+
+		for (int y = top; y < top + height; y++) {
+			final int start = offset + y * stride + left;
+			for (int x = 0; x < width; x++) {
+				buffer.put(start + x, value);
+			}
+		}
+	}
+
+	private void fillNoise(@NonNull final ByteBuffer buffer, final int size) {
+		buffer.clear();
+		int i = 0;
+		for (; i + 4 <= size; i += 4) {
+			buffer.putInt(i, nextNoise());
+		}
+		for (; i < size; i++) {
+			buffer.put(i, (byte)nextNoise());
+		}
+	}
+
+	/**
+	 * xorshiftによる擬似乱数
+	 */
+	private int nextNoise() {
+		int x = mNoiseSeed;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		mNoiseSeed = x;
+		return x;
+	}
+}
@@ -0,0 +1,518 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoFrame;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Y4Mファイルの映像をWebRTCへ流すためのVideoCapturer実装
+ * org.webrtc.FileVideoCapturerはフレーム毎にファイルから新しいバッファへ読み込むので
+ * 高解像度の映像ではファイルの読み込みが律速になる
+ * こちらはファイルをメモリーマップしてマップしたメモリーをそのままJavaI420Bufferとして
+ * 引き渡すのでフレーム毎のコピー・バッファ確保をしない
+ * マップするのは再生位置付近のWINDOW_SIZEまでなのでファイルサイズに関わらず
+ * アドレス空間の消費はほぼ一定
+ *
+ * 複数のファイルを指定すると順番に再生し, 最後のファイルの後は最初のファイルへ戻る
+ * フレームはファイルのフレームレート(指定されていなければstartCaptureのフレームレート)で
+ * System#nanoTimeを元に開始時刻からの経過時間で送出するので誤差が蓄積しない
+ */
+public class Y4mFileVideoCapture implements VideoCapturer {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = Y4mFileVideoCapture.class.getSimpleName();
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final String Y4M_SIGNATURE = "YUV4MPEG2";
+	private static final String FRAME_SIGNATURE = "FRAME";
+	private static final int MAX_HEADER_LENGTH = 1024;
+	/**
+	 * 1回にメモリーマップする最大サイズ
+	 */
+	private static final long WINDOW_SIZE = 32L * 1024 * 1024;
+	/**
+	 * 対応するカラースペース(C以降), 何も指定されていなければ420jpeg
+	 */
+	private static final List<String> SUPPORTED_COLORSPACES
+		= Arrays.asList("420", "420jpeg", "420paldv", "420mpeg2");
+	private static final int PAGE_SIZE = 4096;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	/**
+	 * Y4Mファイル
+	 * ファイル全体を一度にマップすると高解像度の長い映像ではアドレス空間が足りなくなるので
+	 * 再生位置を含む最大WINDOW_SIZEの範囲だけをマップし, 範囲外のフレームになれば
+	 * マップし直す. 以前の範囲は引き渡したフレームが全て解放された後にGCで解放される
+	 */
+	private static class Y4mFile {
+		@NonNull
+		final String path;
+		final int width;
+		final int height;
+		/**
+		 * ファイルに指定されたフレーム間隔[ナノ秒], 指定されていなければ0
+		 */
+		final long frameIntervalNs;
+		final int sizeY;
+		final int sizeUV;
+		final int frameSize;
+		@NonNull
+		private final RandomAccessFile file;
+		private final long fileSize;
+		/**
+		 * フレーム毎のフレームデータのファイル内の位置
+		 */
+		@NonNull
+		private final long[] dataOffsets;
+		// 以下は送出スレッドでのみアクセスする
+		@Nullable
+		private MappedByteBuffer window;
+		private long windowStart;
+		private long windowEnd;
+
+		Y4mFile(@NonNull final String path) throws IOException {
+			this.path = path;
+			file = new RandomAccessFile(path, "r");
+			try {
+				fileSize = file.length();
+				final byte[] headerBytes = new byte[(int)Math.min(MAX_HEADER_LENGTH, fileSize)];
+				file.readFully(headerBytes);
+				final int headerLength = indexOf(headerBytes, 0, headerBytes.length, (byte)'\n');
+				if (headerLength < 0) {
+					throw new IOException("Invalid y4m header: " + path);
+				}
+				int w = 0, h = 0;
+				long interval = 0;
+				final String[] tokens
+					= new String(headerBytes, 0, headerLength, US_ASCII).split(" ");
+				if (!Y4M_SIGNATURE.equals(tokens[0])) {
+					throw new IOException("Not a y4m file: " + path);
+				}
+				for (int i = 1; i < tokens.length; i++) {
+					final String token = tokens[i];
+					if (token.isEmpty()) {
+						continue;
+					}
+					switch (token.charAt(0)) {
+					case 'W':
+						w = Integer.parseInt(token.substring(1));
+						break;
+					case 'H':
+						h = Integer.parseInt(token.substring(1));
+						break;
+					case 'F':
+						final String[] rate = token.substring(1).split(":");
+						final long num = Long.parseLong(rate[0]);
+						final long den = rate.length > 1 ? Long.parseLong(rate[1]) : 1;
+						interval = num > 0 ? NANOS_PER_SECOND * den / num : 0;
+						break;
+					case 'C':
+						// 8ビットの4:2:0のみ(C420p10等の高ビット深度は不可)
+						if (!SUPPORTED_COLORSPACES.contains(token.substring(1))) {
+							throw new IOException("Only 8-bit 4:2:0 y4m files are supported: " + token);
+						}
+						break;
+					default:
+						break;
+					}
+				}
+				if ((w <= 0) || (h <= 0)) {
+					throw new IOException("No frame size in y4m header: " + path);
+				}
+				width = w;
+				height = h;
+				frameIntervalNs = interval;
+				sizeY = w * h;
+				sizeUV = ((w + 1) / 2) * ((h + 1) / 2);
+				frameSize = sizeY + sizeUV * 2;
+				dataOffsets = indexFrames(headerLength + 1);
+				if (dataOffsets.length == 0) {
+					throw new IOException("No frames in y4m file: " + path);
+				}
+			} catch (final NumberFormatException e) {
+				file.close();
+				throw new IOException("Invalid y4m header: " + e.getMessage());
+			} catch (final IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * フレームヘッダーを読み込んで各フレームデータの位置を取得する
+		 * 途中で切れている最後のフレームは含まない
+		 * @param start 最初のフレームヘッダーの位置
+		 */
+		private long[] indexFrames(final long start) throws IOException {
+			final FileChannel channel = file.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+			long[] offsets = new long[(int)Math.min(Integer.MAX_VALUE - 8,
+				Math.max(1, (fileSize - start) / (frameSize + FRAME_SIGNATURE.length() + 1)))];
+			int count = 0;
+			long pos = start;
+			while (pos < fileSize) {
+				header.clear();
+				while (header.hasRemaining() && (channel.read(header, pos + header.position()) > 0)) {
+					// 読み込めるだけ読み込む
+				}
+				header.flip();
+				final int frameHeaderEnd = findFrameHeaderEnd(header, 0);
+				if (frameHeaderEnd < 0) {
+					break;
+				}
+				final long dataOffset = pos + frameHeaderEnd + 1;
+				if (dataOffset + frameSize > fileSize) {
+					// 不完全なフレーム
+					break;
+				}
+				if (count == offsets.length) {
+					final long[] grown = new long[count * 2];
+					System.arraycopy(offsets, 0, grown, 0, count);
+					offsets = grown;
+				}
+				offsets[count++] = dataOffset;
+				pos = dataOffset + frameSize;
+			}
+			final long[] result = new long[count];
+			System.arraycopy(offsets, 0, result, 0, count);
+			return result;
+		}
+
+		int getFrameCount() {
+			return dataOffsets.length;
+		}
+
+		/**
+		 * フレームを含む範囲をマップしてフレームデータの先頭位置を返す
+		 * @return マップした範囲内の位置
+		 */
+		private int map(final int index) throws IOException {
+			final long offset = dataOffsets[index];
+			if ((window == null) || (offset < windowStart) || (offset + frameSize > windowEnd)) {
+				final long size = Math.min(Math.max(WINDOW_SIZE, frameSize), fileSize - offset);
+				window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+				windowStart = offset;
+				windowEnd = offset + size;
+			}
+			return (int)(offset - windowStart);
+		}
+
+		/**
+		 * フレームのビューをJavaI420Bufferとして取得
+		 * ビューはマップした範囲を参照し続けるので解放処理は不要
+		 */
+		VideoFrame.I420Buffer getFrame(final int index) throws IOException {
+			final int pos = map(index);
+			final int chromaWidth = (width + 1) / 2;
+			return JavaI420Buffer.wrap(width, height,
+				slice(window, pos, sizeY), width,
+				slice(window, pos + sizeY, sizeUV), chromaWidth,
+				slice(window, pos + sizeY + sizeUV, sizeUV), chromaWidth, null);
+		}
+
+		/**
+		 * フレームのページを読み込んでおく
+		 * エンコーダー側のスレッドでページフォルトが起きないように
+		 * @return 最適化で読み込みが省略されないように読み込んだ値の合計を返す
+		 */
+		int prefetch(final int index) throws IOException {
+			final int pos = map(index);
+			int sink = 0;
+			for (int i = 0; i < frameSize; i += PAGE_SIZE) {
+				sink += window.get(pos + i);
+			}
+			return sink;
+		}
+
+		void close() {
+			window = null;
+			try {
+				file.close();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * "FRAME"で始まるフレームヘッダーの改行位置を取得
+	 * @return 見つからなければ-1
+	 */
+	private static int findFrameHeaderEnd(@NonNull final ByteBuffer buffer, final int pos) {
+		final int limit = buffer.limit();
+		if (pos + FRAME_SIGNATURE.length() >= limit) {
+			return -1;
+		}
+		for (int i = 0; i < FRAME_SIGNATURE.length(); i++) {
+			if (buffer.get(pos + i) != FRAME_SIGNATURE.charAt(i)) {
+				return -1;
+			}
+		}
+		final int end = Math.min(limit, pos + MAX_HEADER_LENGTH);
+		for (int i = pos + FRAME_SIGNATURE.length(); i < end; i++) {
+			if (buffer.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(@NonNull final byte[] bytes,
+		final int start, final int end, final byte value) {
+
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static ByteBuffer slice(@NonNull final ByteBuffer buffer,
+		final int offset, final int length) {
+
+		final ByteBuffer result = buffer.duplicate();
+		result.position(offset);
+		result.limit(offset + length);
+		return result.slice();
+	}
+
+	@NonNull
+	private final Y4mFile[] mFiles;
+	private final Object mSync = new Object();
+	@Nullable
+	private CapturerObserver mObserver;
+	@Nullable
+	private Handler mHandler;
+	// 以下は送出スレッドでのみアクセスする
+	private long mDefaultFrameIntervalNs;
+	private int mFileIndex;
+	private int mFrameIndex;
+	private long mStartNs;
+	private long mFrameCount;
+	/**
+	 * ページの先読み結果, 最適化で先読みが省略されないように保持する
+	 */
+	private volatile int mPrefetchSink;
+
+	/**
+	 * コンストラクタ
+	 * @param paths 再生するY4Mファイル, 複数指定すると順番に再生する
+	 * @throws IOException
+	 */
+	public Y4mFileVideoCapture(@NonNull final String... paths) throws IOException {
+		if (paths.length == 0) {
+			throw new IllegalArgumentException("no y4m files");
+		}
+		mFiles = new Y4mFile[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			mFiles[i] = new Y4mFile(paths[i]);
+			if (DEBUG) Log.v(TAG, paths[i] + ":" + mFiles[i].width + "x" + mFiles[i].height
+				+ "," + mFiles[i].getFrameCount() + " frames");
+		}
+	}
+
+	@Override
+	public void initialize(final SurfaceTextureHelper surfaceTextureHelper,
+		final Context applicationContext, final CapturerObserver capturerObserver) {
+
+		synchronized (mSync) {
+			mObserver = capturerObserver;
+		}
+	}
+
+	@Override
+	public void startCapture(final int width, final int height, final int framerate) {
+		if (DEBUG) Log.v(TAG, "startCapture:");
+		synchronized (mSync) {
+			if (mObserver == null) {
+				throw new IllegalStateException("not initialized");
+			}
+			if (mHandler != null) {
+				return;
+			}
+			mHandler = HandlerThreadHandler.createHandler(TAG);
+			mObserver.onCapturerStarted(true);
+			final Handler handler = mHandler;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					mDefaultFrameIntervalNs = NANOS_PER_SECOND / (framerate > 0 ? framerate : 30);
+					mStartNs = System.nanoTime();
+					mFrameCount = 0;
+					handler.post(mFrameTask);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void stopCapture() throws InterruptedException {
+		if (DEBUG) Log.v(TAG, "stopCapture:");
+		final Handler handler;
+		final CapturerObserver observer;
+		synchronized (mSync) {
+			handler = mHandler;
+			observer = mObserver;
+			mHandler = null;
+		}
+		if (handler != null) {
+			handler.removeCallbacksAndMessages(null);
+			handler.getLooper().quit();
+			handler.getLooper().getThread().join();
+			if (observer != null) {
+				observer.onCapturerStopped();
+			}
+		}
+	}
+
+	@Override
+	public void changeCaptureFormat(final int width, final int height, final int framerate) {
+		synchronized (mSync) {
+			if (mHandler != null) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// 次の予定時刻を開始時刻にして数え直さないと
+						// 変更後のフレーム間隔x送出済みフレーム数で予定時刻が飛ぶ
+						final Y4mFile file = mFiles[mFileIndex];
+						if (file.frameIntervalNs <= 0) {
+							mStartNs += mFrameCount * mDefaultFrameIntervalNs;
+							mFrameCount = 0;
+						}
+						mDefaultFrameIntervalNs
+							= NANOS_PER_SECOND / (framerate > 0 ? framerate : 30);
+					}
+				});
+			}
+		}
+	}
+
+	@Override
+	public void dispose() {
+		try {
+			stopCapture();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (final Y4mFile file: mFiles) {
+			file.close();
+		}
+	}
+
+	@Override
+	public boolean isScreencast() {
+		return false;
+	}
+
+	/**
+	 * 開始時刻からの経過時間に合わせてフレームを送出するRunnable
+	 */
+	private final Runnable mFrameTask = new Runnable() {
+		@Override
+		public void run() {
+			final Handler handler;
+			final CapturerObserver observer;
+			synchronized (mSync) {
+				handler = mHandler;
+				observer = mObserver;
+			}
+			if ((handler == null) || (observer == null)) {
+				return;
+			}
+			final Y4mFile file = mFiles[mFileIndex];
+			final long intervalNs = file.frameIntervalNs > 0
+				? file.frameIntervalNs : mDefaultFrameIntervalNs;
+			final long timestampNs = mStartNs + mFrameCount * intervalNs;
+			try {
+				final VideoFrame frame
+					= new VideoFrame(file.getFrame(mFrameIndex), 0, timestampNs);
+				try {
+					observer.onFrameCaptured(frame);
+				} finally {
+					frame.release();
+				}
+			} catch (final IOException e) {
+				// マップできなかったフレームは飛ばす
+				Log.w(TAG, e);
+			}
+			// 予定時刻を過ぎていれば再生速度を保つためにフレームを飛ばす
+			long next = 1;
+			final long now = System.nanoTime();
+			if (now > timestampNs + intervalNs) {
+				next = (now - timestampNs) / intervalNs;
+			}
+			advance(next);
+			prefetch(mFiles[mFileIndex], mFrameIndex);
+			final long nextNs = mStartNs + mFrameCount * intervalNs;
+			handler.postDelayed(this, Math.max(0, (nextNs - System.nanoTime()) / NANOS_PER_MILLI));
+		}
+	};
+
+	/**
+	 * 送出位置を進める, ファイルの最後まで来たら次のファイルへ移る
+	 * ファイル毎にフレーム間隔が異なることがあるので切り替え時は開始時刻を設定し直す
+	 * @param frames
+	 */
+	private void advance(final long frames) {
+		final long intervalNs = mFiles[mFileIndex].frameIntervalNs > 0
+			? mFiles[mFileIndex].frameIntervalNs : mDefaultFrameIntervalNs;
+		mFrameCount += frames;
+		long index = mFrameIndex + frames;
+		while (index >= mFiles[mFileIndex].getFrameCount()) {
+			index -= mFiles[mFileIndex].getFrameCount();
+			mFileIndex = (mFileIndex + 1) % mFiles.length;
+			if (mFiles.length > 1) {
+				index = 0;
+			}
+		}
+		mFrameIndex = (int)index;
+		final long nextIntervalNs = mFiles[mFileIndex].frameIntervalNs > 0
+			? mFiles[mFileIndex].frameIntervalNs : mDefaultFrameIntervalNs;
+		if (nextIntervalNs != intervalNs) {
+			mStartNs += mFrameCount * intervalNs;
+			mFrameCount = 0;
+		}
+	}
+
+	/**
+	 * 次のフレームのページを読み込んでおく
+	 * エンコーダー側のスレッドでページフォルトが起きないように
+	 */
+	private void prefetch(@NonNull final Y4mFile file, final int index) {
+		try {
+			mPrefetchSink = file.prefetch(index);
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+		}
+	}
+}
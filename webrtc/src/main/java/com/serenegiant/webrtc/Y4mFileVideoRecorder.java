@@ -0,0 +1,421 @@
+package com.serenegiant.webrtc;
+/*
+ *  Copyright 2018 saki t_saki@serenegiant.com　All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * 受け取った映像をY4Mファイルへ書き込むVideoSink実装
+ * org.webrtc.VideoFileRendererはフレームの縮小・書き込みが終わるまで次のフレームを
+ * 受け取れないのでディスクへの書き込みが遅れると映像の供給元まで詰まってしまう
+ * こちらは変換用スレッドで出力サイズへ縮小してあらかじめ確保したバッファへコピーし
+ * 書き込み用スレッドでメモリーマップした出力ファイルへ書き込む
+ * 変換中・バッファが空いていない時はフレームを待たずに破棄して破棄数をカウントする
+ * 出力ファイルはコンストラクタで指定したフレームレートの固定フレームレートで,
+ * 各フレームはタイムスタンプから求めたフレーム位置へ書き込む.
+ * 破棄したフレームや入力が途切れた間は直前のフレームを繰り返して書き込むので
+ * 再生時のタイミングは元の映像とずれない. 同じフレーム位置の2つ目以降のフレームは書き込まない
+ */
+public class Y4mFileVideoRecorder implements VideoSink {
+	private static final boolean DEBUG = false; // set false on production
+	private static final String TAG = Y4mFileVideoRecorder.class.getSimpleName();
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final byte[] FRAME_HEADER = "FRAME\n".getBytes(US_ASCII);
+	/**
+	 * フレームデータのコピー先バッファの数
+	 */
+	private static final int POOL_SIZE = 4;
+	/**
+	 * フレームレートが指定されていない時のフレームレート
+	 */
+	private static final int DEFAULT_FRAMERATE = 30;
+	/**
+	 * 1回にメモリーマップする最大サイズ
+	 */
+	private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private final int mOutputWidth;
+	private final int mOutputHeight;
+	private final int mFrameSize;
+	/**
+	 * 出力ファイルのフレーム間隔[ナノ秒]
+	 */
+	private final long mFrameIntervalNs;
+	private final long mSegmentSize;
+	@NonNull
+	private final RandomAccessFile mFile;
+	private final ArrayBlockingQueue<ByteBuffer> mPool
+		= new ArrayBlockingQueue<>(POOL_SIZE);
+	@NonNull
+	private final Handler mConverterHandler;
+	@NonNull
+	private final Handler mWriterHandler;
+	private final AtomicBoolean mConverting = new AtomicBoolean();
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	private final AtomicLong mRecordedFrames = new AtomicLong();
+	private volatile boolean mReleased;
+	// 以下は変換用スレッドでのみアクセスする
+	@Nullable
+	private byte[] mRow;
+	/**
+	 * フレーム位置の基準にするタイムスタンプとそのフレーム位置
+	 * タイムスタンプが巻き戻った時は直前のフレームの次から数え直す
+	 */
+	private long mBaseTimestampNs;
+	private long mBaseSlot;
+	private long mLastTimestampNs;
+	/**
+	 * 最後に書き込みへ回したフレーム位置, まだなければ-1
+	 */
+	private long mLastSlot = -1;
+	// 以下は書き込み用スレッドでのみアクセスする
+	@Nullable
+	private MappedByteBuffer mSegment;
+	private long mWrittenBytes;
+	/**
+	 * 最後に書き込んだフレーム, 間が空いた時に繰り返して書き込むためにプールへ返さずに保持する
+	 */
+	@Nullable
+	private ByteBuffer mLastFrame;
+	/**
+	 * 次に書き込むフレーム位置
+	 */
+	private long mNextSlot;
+
+	/**
+	 * コンストラクタ
+	 * @param outputFile
+	 * @param outputWidth 出力映像の幅, 偶数
+	 * @param outputHeight 出力映像の高さ, 偶数
+	 * @param framerate 出力ファイルのフレームレート, 0以下なら30
+	 * @throws IOException
+	 */
+	public Y4mFileVideoRecorder(@NonNull final String outputFile,
+		final int outputWidth, final int outputHeight, final int framerate) throws IOException {
+
+		if ((outputWidth <= 0) || (outputHeight <= 0)
+			|| (outputWidth % 2 != 0) || (outputHeight % 2 != 0)) {
+			throw new IllegalArgumentException("output size must be positive and even");
+		}
+		mOutputWidth = outputWidth;
+		mOutputHeight = outputHeight;
+		mFrameSize = outputWidth * outputHeight * 3 / 2;
+		final int fps = framerate > 0 ? framerate : DEFAULT_FRAMERATE;
+		mFrameIntervalNs = 1000000000L / fps;
+		final int recordSize = FRAME_HEADER.length + mFrameSize;
+		mSegmentSize = Math.max(1, MAX_SEGMENT_SIZE / recordSize) * recordSize;
+		mFile = new RandomAccessFile(outputFile, "rw");
+		try {
+			mFile.setLength(0);
+			final byte[] header = ("YUV4MPEG2 C420 W" + outputWidth + " H" + outputHeight
+				+ " Ip F" + fps + ":1 A1:1\n").getBytes(US_ASCII);
+			mFile.write(header);
+			mWrittenBytes = header.length;
+			for (int i = 0; i < POOL_SIZE; i++) {
+				mPool.add(ByteBuffer.allocateDirect(mFrameSize));
+			}
+		} catch (final IOException e) {
+			mFile.close();
+			throw e;
+		}
+		mConverterHandler = HandlerThreadHandler.createHandler(TAG + "Converter");
+		mWriterHandler = HandlerThreadHandler.createHandler(TAG + "Writer");
+	}
+
+	/**
+	 * 録画を終了する
+	 * 変換中・書き込み待ちのフレームを書き込んでから非同期でファイルを閉じる
+	 */
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		if (mReleased) {
+			return;
+		}
+		mReleased = true;
+		mConverterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mConverterHandler.getLooper().quit();
+				mWriterHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							close();
+						} finally {
+							mWriterHandler.getLooper().quit();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * 破棄したフレーム数を取得
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames.get();
+	}
+
+	/**
+	 * 書き込んだフレーム数を取得, 間を埋めるために繰り返したフレームを含む
+	 */
+	public long getRecordedFrames() {
+		return mRecordedFrames.get();
+	}
+
+	@Override
+	public void onFrame(final VideoFrame frame) {
+		if (mReleased) {
+			return;
+		}
+		if (!mConverting.compareAndSet(false, true)) {
+			mDroppedFrames.incrementAndGet();
+			return;
+		}
+		frame.retain();
+		if (!mConverterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					convert(frame);
+				} finally {
+					frame.release();
+					mConverting.set(false);
+				}
+			}
+		})) {
+			frame.release();
+			mConverting.set(false);
+		}
+	}
+
+	/**
+	 * 出力サイズへ縮小・回転してバッファへコピーする, 変換用スレッドで呼ぶ
+	 * テクスチャのフレームはすぐに解放しないと映像の供給元が次のフレームを出せないので
+	 * ここではファイルへ書き込まない
+	 * @param frame
+	 */
+	private void convert(@NonNull final VideoFrame frame) {
+		final long slot = getSlot(frame.getTimestampNs());
+		if (slot <= mLastSlot) {
+			// 出力フレームレートより速く来たフレーム
+			return;
+		}
+		final ByteBuffer out = mPool.poll();
+		if (out == null) {
+			// 書き込みが追いついていない
+			mDroppedFrames.incrementAndGet();
+			return;
+		}
+		final int rotation = frame.getRotation();
+		final boolean swap = rotation % 180 != 0;
+		final int scaledWidth = swap ? mOutputHeight : mOutputWidth;
+		final int scaledHeight = swap ? mOutputWidth : mOutputHeight;
+		// アスペクト比を維持するように中央を切り出す
+		final VideoFrame.Buffer buffer = frame.getBuffer();
+		final int width = buffer.getWidth();
+		final int height = buffer.getHeight();
+		int cropWidth = width;
+		int cropHeight = height;
+		if ((long)width * scaledHeight > (long)height * scaledWidth) {
+			cropWidth = (int)((long)height * scaledWidth / scaledHeight);
+		} else {
+			cropHeight = (int)((long)width * scaledHeight / scaledWidth);
+		}
+		final VideoFrame.Buffer scaled = buffer.cropAndScale(
+			(width - cropWidth) / 2, (height - cropHeight) / 2, cropWidth, cropHeight,
+			scaledWidth, scaledHeight);
+		final VideoFrame.I420Buffer i420 = scaled.toI420();
+		scaled.release();
+		try {
+			final int sizeY = mOutputWidth * mOutputHeight;
+			out.clear();
+			copyPlane(i420.getDataY(), i420.getStrideY(), scaledWidth, scaledHeight,
+				out, 0, rotation);
+			copyPlane(i420.getDataU(), i420.getStrideU(), scaledWidth / 2, scaledHeight / 2,
+				out, sizeY, rotation);
+			copyPlane(i420.getDataV(), i420.getStrideV(), scaledWidth / 2, scaledHeight / 2,
+				out, sizeY + sizeY / 4, rotation);
+		} finally {
+			i420.release();
+		}
+		if (mWriterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				write(out, slot);
+			}
+		})) {
+			mLastSlot = slot;
+		} else {
+			mPool.offer(out);
+		}
+	}
+
+	/**
+	 * タイムスタンプから出力ファイルのフレーム位置を求める, 変換用スレッドで呼ぶ
+	 * @param timestampNs
+	 */
+	private long getSlot(final long timestampNs) {
+		if ((mLastSlot < 0) || (timestampNs < mLastTimestampNs)) {
+			mBaseTimestampNs = timestampNs;
+			mBaseSlot = mLastSlot + 1;
+		}
+		mLastTimestampNs = timestampNs;
+		return mBaseSlot
+			+ (timestampNs - mBaseTimestampNs + mFrameIntervalNs / 2) / mFrameIntervalNs;
+	}
+
+	/**
+	 * 1プレーン分をコピーする
+	 * @param src
+	 * @param srcStride
+	 * @param srcWidth
+	 * @param srcHeight
+	 * @param dst
+	 * @param dstOffset
+	 * @param rotation 0, 90, 180, 270, 時計回り
+	 */
+	private void copyPlane(@NonNull final ByteBuffer src, final int srcStride,
+		final int srcWidth, final int srcHeight,
+		@NonNull final ByteBuffer dst, final int dstOffset, final int rotation) {
+
+		switch (rotation) {
+		case 90:
+			for (int y = 0; y < srcHeight; y++) {
+				final int row = y * srcStride;
+				final int col = dstOffset + (srcHeight - 1 - y);
+				for (int x = 0; x < srcWidth; x++) {
+					dst.put(col + x * srcHeight, src.get(row + x));
+				}
+			}
+			break;
+		case 180:
+			for (int y = 0; y < srcHeight; y++) {
+				final int row = y * srcStride;
+				final int dstRow = dstOffset + (srcHeight - 1 - y) * srcWidth + srcWidth - 1;
+				for (int x = 0; x < srcWidth; x++) {
+					dst.put(dstRow - x, src.get(row + x));
+				}
+			}
+			break;
+		case 270:
+			for (int y = 0; y < srcHeight; y++) {
+				final int row = y * srcStride;
+				final int col = dstOffset + y;
+				for (int x = 0; x < srcWidth; x++) {
+					dst.put(col + (srcWidth - 1 - x) * srcHeight, src.get(row + x));
+				}
+			}
+			break;
+		default:
+			if ((mRow == null) || (mRow.length < srcWidth)) {
+				mRow = new byte[srcWidth];
+			}
+			dst.position(dstOffset);
+			for (int y = 0; y < srcHeight; y++) {
+				src.position(y * srcStride);
+				src.get(mRow, 0, srcWidth);
+				dst.put(mRow, 0, srcWidth);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * 前のフレームからの間を直前のフレームで埋めてからバッファの内容をファイルへ書き込む
+	 * 書き込み用スレッドで呼ぶ
+	 * バッファは次のフレームを書き込むまで保持して, その前に保持していたバッファを返却する
+	 * @param data
+	 * @param slot 出力ファイルのフレーム位置
+	 */
+	private void write(@NonNull final ByteBuffer data, final long slot) {
+		try {
+			if (mLastFrame != null) {
+				for (; mNextSlot < slot; mNextSlot++) {
+					writeFrame(mLastFrame);
+				}
+			}
+			writeFrame(data);
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+			mDroppedFrames.incrementAndGet();
+		} finally {
+			mNextSlot = slot + 1;
+			if (mLastFrame != null) {
+				mLastFrame.clear();
+				mPool.offer(mLastFrame);
+			}
+			mLastFrame = data;
+		}
+	}
+
+	/**
+	 * 1フレーム分をファイルへ書き込む, 書き込み用スレッドで呼ぶ
+	 * @param data
+	 * @throws IOException
+	 */
+	private void writeFrame(@NonNull final ByteBuffer data) throws IOException {
+		if ((mSegment == null) || (mSegment.remaining() < FRAME_HEADER.length + mFrameSize)) {
+			// 次の領域をマップする, マップした範囲までファイルが拡張される
+			mSegment = mFile.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, mWrittenBytes, mSegmentSize);
+		}
+		data.position(0);
+		data.limit(mFrameSize);
+		mSegment.put(FRAME_HEADER);
+		mSegment.put(data);
+		mWrittenBytes += FRAME_HEADER.length + mFrameSize;
+		mRecordedFrames.incrementAndGet();
+	}
+
+	/**
+	 * 書き込んだ所までにファイルを切り詰めて閉じる, 書き込み用スレッドで呼ぶ
+	 */
+	private void close() {
+		if (DEBUG) Log.v(TAG, "close:recorded=" + mRecordedFrames.get()
+			+ ",dropped=" + mDroppedFrames.get());
+		try {
+			if (mSegment != null) {
+				mSegment.force();
+				mSegment = null;
+			}
+			mFile.setLength(mWrittenBytes);
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+		} finally {
+			try {
+				mFile.close();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.serenegiant.webrtc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FramePacerの間引き結果のフレーム数・フレーム間隔を確認するテスト
+ */
+public class FramePacerTest {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	/**
+	 * タイムスタンプの開始値, 0以外から始まっても良いように
+	 */
+	private static final long START_NS = 5 * NANOS_PER_SECOND;
+
+	/**
+	 * 入力フレームレートのタイムスタンプで指定秒数分のフレームを入力して
+	 * 引き渡されたフレームのタイムスタンプを返す
+	 */
+	private static List<Long> forward(final FramePacer pacer,
+		final int inputFramerate, final int seconds) {
+
+		final List<Long> result = new ArrayList<>();
+		for (int i = 0; i < inputFramerate * seconds; i++) {
+			final long timestampNs = START_NS + NANOS_PER_SECOND * i / inputFramerate;
+			if (pacer.shouldForward(timestampNs)) {
+				result.add(timestampNs);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 間引き後のフレーム間隔が入力フレーム間隔の整数倍で
+	 * 隣り合う間隔の合計が指定フレーム間隔の2倍になる(=平均すると指定フレームレート)ことを確認
+	 */
+	private static void assertCadence(final List<Long> timestamps,
+		final int inputFramerate, final int framerate) {
+
+		final long inputIntervalNs = NANOS_PER_SECOND / inputFramerate;
+		final long intervalNs = NANOS_PER_SECOND / framerate;
+		for (int i = 1; i < timestamps.size(); i++) {
+			final long gap = timestamps.get(i) - timestamps.get(i - 1);
+			assertTrue("gap " + gap, gap >= inputIntervalNs);
+			assertTrue("gap " + gap, gap < intervalNs + inputIntervalNs);
+			if (i > 1) {
+				final long pair = timestamps.get(i) - timestamps.get(i - 2);
+				assertEquals(2 * intervalNs, pair, NANOS_PER_MILLI);
+			}
+		}
+	}
+
+	@Test
+	public void from30to20fps() {
+		final FramePacer pacer = new FramePacer();
+		pacer.setFramerate(20);
+		final List<Long> timestamps = forward(pacer, 30, 3);
+		// 2フレーム通して1フレーム間引く
+		assertEquals(60, timestamps.size());
+		assertEquals(START_NS, (long)timestamps.get(0));
+		assertCadence(timestamps, 30, 20);
+	}
+
+	@Test
+	public void from60to24fps() {
+		final FramePacer pacer = new FramePacer();
+		pacer.setFramerate(24);
+		final List<Long> timestamps = forward(pacer, 60, 3);
+		// 5フレーム中2フレームを通す
+		assertEquals(72, timestamps.size());
+		assertEquals(START_NS, (long)timestamps.get(0));
+		assertCadence(timestamps, 60, 24);
+	}
+
+	@Test
+	public void unlimited() {
+		final FramePacer pacer = new FramePacer();
+		assertEquals(90, forward(pacer, 30, 3).size());
+		pacer.setFramerate(0);
+		assertEquals(90, forward(pacer, 30, 3).size());
+	}
+}
@@ -0,0 +1,129 @@
+package com.serenegiant.webrtc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * LatencyHistogramのパーセンタイル値・統計値の境界条件を確認するテスト
+ */
+public class LatencyHistogramTest {
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final float DELTA = 0.001f;
+
+	/**
+	 * 1ミリ秒幅x10バケット, 10ミリ秒以上は範囲外
+	 */
+	private static LatencyHistogram create() {
+		return new LatencyHistogram(NANOS_PER_MILLI, 10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBucketWidth() {
+		new LatencyHistogram(0, 10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidNumBuckets() {
+		new LatencyHistogram(NANOS_PER_MILLI, 0);
+	}
+
+	@Test
+	public void empty() {
+		final LatencyHistogram histogram = create();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMs(0), DELTA);
+		assertEquals(0, histogram.getPercentileMs(50), DELTA);
+		assertEquals(0, histogram.getPercentileMs(100), DELTA);
+		assertEquals(0, histogram.getMeanMs(), DELTA);
+		assertEquals(0, histogram.getStdDevMs(), DELTA);
+		assertEquals(0, histogram.getMaxMs(), DELTA);
+	}
+
+	@Test
+	public void singleValue() {
+		final LatencyHistogram histogram = create();
+		histogram.add(2500000);
+		// バケットの上限値(3ミリ秒)ではなく最大値を超えないように
+		assertEquals(2.5f, histogram.getPercentileMs(0), DELTA);
+		assertEquals(2.5f, histogram.getPercentileMs(50), DELTA);
+		assertEquals(2.5f, histogram.getPercentileMs(100), DELTA);
+		assertEquals(2.5f, histogram.getMeanMs(), DELTA);
+		assertEquals(0, histogram.getStdDevMs(), DELTA);
+	}
+
+	@Test
+	public void percentileEdges() {
+		final LatencyHistogram histogram = create();
+		// 0.5, 1.5, ... 9.5ミリ秒を1つずつ
+		for (int i = 0; i < 10; i++) {
+			histogram.add(i * NANOS_PER_MILLI + NANOS_PER_MILLI / 2);
+		}
+		assertEquals(10, histogram.getCount());
+		// 0パーセンタイルは最小のバケット
+		assertEquals(1, histogram.getPercentileMs(0), DELTA);
+		assertEquals(1, histogram.getPercentileMs(10), DELTA);
+		// 順位は切り上げ
+		assertEquals(2, histogram.getPercentileMs(10.5f), DELTA);
+		assertEquals(5, histogram.getPercentileMs(50), DELTA);
+		assertEquals(9, histogram.getPercentileMs(90), DELTA);
+		// 最大のバケットは最大値で頭打ち
+		assertEquals(9.5f, histogram.getPercentileMs(100), DELTA);
+		assertEquals(5, histogram.getMeanMs(), DELTA);
+	}
+
+	@Test
+	public void overflowBucket() {
+		final LatencyHistogram histogram = create();
+		for (int i = 0; i < 9; i++) {
+			histogram.add(NANOS_PER_MILLI / 2);
+		}
+		histogram.add(10 * NANOS_PER_MILLI);
+		histogram.add(250 * NANOS_PER_MILLI);
+		// 範囲内のバケットは最大値が範囲外でもバケットの上限値
+		assertEquals(1, histogram.getPercentileMs(50), DELTA);
+		assertEquals(1, histogram.getPercentileMs(80), DELTA);
+		// 範囲外のバケットは最大値を返す
+		assertEquals(250, histogram.getPercentileMs(90), DELTA);
+		assertEquals(250, histogram.getPercentileMs(100), DELTA);
+		assertEquals(250, histogram.getMaxMs(), DELTA);
+	}
+
+	@Test
+	public void negativeValue() {
+		final LatencyHistogram histogram = create();
+		histogram.add(-5 * NANOS_PER_MILLI);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMs(100), DELTA);
+		assertEquals(0, histogram.getMeanMs(), DELTA);
+		assertEquals(0, histogram.getMaxMs(), DELTA);
+	}
+
+	@Test
+	public void stdDev() {
+		final LatencyHistogram histogram = create();
+		histogram.add(2 * NANOS_PER_MILLI);
+		histogram.add(4 * NANOS_PER_MILLI);
+		histogram.add(4 * NANOS_PER_MILLI);
+		histogram.add(4 * NANOS_PER_MILLI);
+		histogram.add(5 * NANOS_PER_MILLI);
+		histogram.add(5 * NANOS_PER_MILLI);
+		histogram.add(7 * NANOS_PER_MILLI);
+		histogram.add(9 * NANOS_PER_MILLI);
+		assertEquals(5, histogram.getMeanMs(), DELTA);
+		assertEquals(2, histogram.getStdDevMs(), DELTA);
+	}
+
+	@Test
+	public void reset() {
+		final LatencyHistogram histogram = create();
+		histogram.add(3 * NANOS_PER_MILLI);
+		histogram.add(30 * NANOS_PER_MILLI);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMs(100), DELTA);
+		assertEquals(0, histogram.getMaxMs(), DELTA);
+		histogram.add(NANOS_PER_MILLI / 2);
+		assertEquals(0.5f, histogram.getPercentileMs(100), DELTA);
+	}
+}